@@ -13,6 +13,8 @@ import javax.naming.InitialContext;
 import rental.CarType;
 import rental.Reservation;
 import rental.ReservationConstraints;
+import session.CachingCarRentalSession;
+import session.CachingManagerSession;
 import session.CarRentalSessionRemote;
 import session.ManagerSessionRemote;
 
@@ -37,14 +39,16 @@ public class Main extends AbstractTestManagement<CarRentalSessionRemote, Manager
 
     @Override
     protected CarRentalSessionRemote getNewReservationSession(String name) throws Exception {
-        CarRentalSessionRemote out = (CarRentalSessionRemote) new InitialContext().lookup(CarRentalSessionRemote.class.getName());
+        CarRentalSessionRemote out = new CachingCarRentalSession(
+                (CarRentalSessionRemote) new InitialContext().lookup(CarRentalSessionRemote.class.getName()));
         out.setRenterName(name);
         return out;
     }
 
     @Override
     protected ManagerSessionRemote getNewManagerSession(String name, String carRentalName) throws Exception {
-        ManagerSessionRemote out = (ManagerSessionRemote) new InitialContext().lookup(ManagerSessionRemote.class.getName());
+        ManagerSessionRemote out = new CachingManagerSession(
+                (ManagerSessionRemote) new InitialContext().lookup(ManagerSessionRemote.class.getName()));
         return out;
     }
 
@@ -88,6 +92,10 @@ public class Main extends AbstractTestManagement<CarRentalSessionRemote, Manager
     }
 
     private void loadRental(String name, String datafile, ManagerSessionRemote session) {
+        if (session.getAllRentalCompanies().contains(name)) {
+            Logger.getLogger(Main.class.getName()).log(Level.INFO, "{0} already loaded, skipping {1}", new Object[]{name, datafile});
+            return;
+        }
         Logger.getLogger(Main.class.getName()).log(Level.INFO, "loading {0} from file {1}", new Object[]{name, datafile});
         try {
             session.addNewCompany(name);
@@ -0,0 +1,259 @@
+package perf;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import rental.CapacityCheck;
+import rental.Car;
+import rental.CarRentalCompany;
+import rental.CarType;
+import rental.Clock;
+import rental.CompanyAvailability;
+import rental.Days;
+import rental.Quote;
+import rental.RentalEvent;
+import rental.Reservation;
+import rental.ReservationConstraints;
+import rental.ReservationException;
+
+/**
+ * Discrete-event simulation of booking traffic against one in-memory
+ * {@link CarRentalCompany}, without container or database. Customers arrive
+ * as a Poisson process, ask for a car type some days ahead for some days, and
+ * book it if a quote can be had; some cancel before their rental starts. The
+ * run reports the rejection rate, the utilisation of the fleet and the number
+ * of domain operations per second of wall-clock time, so it serves both to
+ * size a fleet and as a macro-benchmark of the availability checks.
+ *
+ * Runs are repeatable: every random choice, including the car the company
+ * picks, comes from the seed, and the company takes the simulated day as
+ * today when it decides which bookings may move to another car.
+ *
+ * Configured with system properties:
+ * <ul>
+ * <li>{@code sim.seed} (42), {@code sim.days} (365)</li>
+ * <li>{@code sim.types} (5) car types of {@code sim.carsPerType} (20) cars</li>
+ * <li>{@code sim.arrivalsPerDay} (40), exponential inter-arrival times</li>
+ * <li>{@code sim.meanLeadDays} (14), exponential time between request and start</li>
+ * <li>{@code sim.meanDurationDays} (4), geometric rental length of at least one day</li>
+ * <li>{@code sim.cancelRate} (0.1), share of bookings cancelled before they start</li>
+ * </ul>
+ *
+ * Usage: ant simulate -Dsim.carsPerType=30 ...
+ */
+public class BookingSimulator {
+
+    private static final String COMPANY = "Simulated";
+
+    private final long seed = Long.getLong("sim.seed", 42L);
+    private final int days = Integer.getInteger("sim.days", 365);
+    private final int nbOfTypes = Integer.getInteger("sim.types", 5);
+    private final int carsPerType = Integer.getInteger("sim.carsPerType", 20);
+    private final double arrivalsPerDay = Double.parseDouble(System.getProperty("sim.arrivalsPerDay", "40"));
+    private final double meanLeadDays = Double.parseDouble(System.getProperty("sim.meanLeadDays", "14"));
+    private final double meanDurationDays = Double.parseDouble(System.getProperty("sim.meanDurationDays", "4"));
+    private final double cancelRate = Double.parseDouble(System.getProperty("sim.cancelRate", "0.1"));
+
+    private final Random random = new Random(seed);
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+    private final int today = Days.toEpochDay(new Date());
+    private final List<CarType> types = new ArrayList<CarType>();
+    private CarRentalCompany company;
+    // counts the bookings per type, as the availability projection does
+    private CompanyAvailability availability;
+    private long sequence;
+    // in days since the start of the simulation, of the event being fired
+    private double currentTime;
+
+    private int requests;
+    private int rejected;
+    private int confirmed;
+    private int cancelled;
+    private long operations;
+    // days booked within the simulated period by the bookings that were kept
+    private long bookedDays;
+
+    public static void main(String[] args) throws Exception {
+        Logger.getLogger(CarRentalCompany.class.getName()).setLevel(Level.WARNING);
+        new BookingSimulator().run();
+    }
+
+    /**********
+     * EVENTS *
+     **********/
+
+    private abstract class Event implements Comparable<Event> {
+
+        // in days since the start of the simulation
+        final double time;
+        final long order = sequence++;
+
+        Event(double time) {
+            this.time = time;
+        }
+
+        abstract void fire() throws Exception;
+
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Double.compare(time, other.time);
+            return byTime != 0 ? byTime : (order < other.order ? -1 : (order == other.order ? 0 : 1));
+        }
+    }
+
+    private class Arrival extends Event {
+
+        Arrival(double time) {
+            super(time);
+        }
+
+        @Override
+        void fire() {
+            schedule(new Arrival(time + exponential(1 / arrivalsPerDay)));
+            requests++;
+            int start = today + (int) (time + exponential(meanLeadDays)) + 1;
+            int end = start + geometric(meanDurationDays);
+            CarType type = types.get(random.nextInt(types.size()));
+            Reservation res;
+            try {
+                operations++;
+                Quote quote = company.createQuote(
+                        new ReservationConstraints(Days.toDate(start), Days.toDate(end), type.getName()), "r" + requests);
+                operations++;
+                res = company.confirmQuote(quote);
+            } catch (ReservationException e) {
+                rejected++;
+                return;
+            }
+            apply(company.drainEvents());
+            confirmed++;
+            bookedDays += daysInPeriod(start, end);
+            if (random.nextDouble() < cancelRate) {
+                schedule(new Cancellation(time + random.nextDouble() * (start - today - time), res));
+            }
+        }
+    }
+
+    private class Cancellation extends Event {
+
+        private final Reservation res;
+
+        Cancellation(double time, Reservation res) {
+            super(time);
+            this.res = res;
+        }
+
+        @Override
+        void fire() {
+            operations++;
+            company.cancelReservation(res);
+            apply(company.drainEvents());
+            cancelled++;
+            bookedDays -= daysInPeriod(Days.toEpochDay(res.getStartDate()), Days.toEpochDay(res.getEndDate()));
+        }
+    }
+
+    private class EndOfDay extends Event {
+
+        EndOfDay(double time) {
+            super(time);
+        }
+
+        @Override
+        void fire() {
+            // as the nightly archiver does, keeps the current bookings short
+            company.archiveReservationsEndedBefore(Days.toDate(today + (int) time));
+            schedule(new EndOfDay(time + 1));
+        }
+    }
+
+    private void apply(List<RentalEvent> events) {
+        for (RentalEvent event : events) {
+            availability.apply(event);
+        }
+    }
+
+    private void schedule(Event event) {
+        if (event.time < days) {
+            events.add(event);
+        }
+    }
+
+    /*******
+     * RUN *
+     *******/
+
+    private void run() throws Exception {
+        List<Car> cars = new ArrayList<Car>();
+        for (int t = 0; t < nbOfTypes; t++) {
+            CarType type = new CarType("Type" + t, 4 + t % 3, 200 + 100 * t, 30 + 20 * t, t % 2 == 0);
+            types.add(type);
+            for (int i = 0; i < carsPerType; i++) {
+                cars.add(new Car(cars.size(), type));
+            }
+        }
+        company = new CarRentalCompany(COMPANY, cars);
+        company.setRandom(new Random(seed));
+        company.setClock(new Clock() {
+            @Override
+            public int today() {
+                return today + (int) currentTime;
+            }
+        });
+        availability = CompanyAvailability.of(company);
+        company.attachCapacityCheck(new CapacityCheck() {
+            @Override
+            public boolean hasCapacity(String name, String carType, int startDay, int endDay) {
+                return availability.hasCapacity(carType, startDay, endDay);
+            }
+        });
+
+        schedule(new Arrival(exponential(1 / arrivalsPerDay)));
+        schedule(new EndOfDay(1));
+        long started = System.nanoTime();
+        Event event;
+        while ((event = events.poll()) != null) {
+            currentTime = event.time;
+            event.fire();
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+
+        System.out.println(String.format("Simulated %d days of %d cars with seed %d", days, cars.size(), seed));
+        System.out.println(String.format("%-24s %10d", "requests", requests));
+        System.out.println(String.format("%-24s %10d (%.1f%%)", "rejected", rejected, 100.0 * rejected / Math.max(1, requests)));
+        System.out.println(String.format("%-24s %10d", "confirmed", confirmed));
+        System.out.println(String.format("%-24s %10d", "cancelled", cancelled));
+        System.out.println(String.format("%-24s %10.1f%%", "utilisation", 100.0 * bookedDays / ((long) cars.size() * days)));
+        System.out.println(String.format("%-24s %10.0f per second (%.2f s)", "operations", operations / seconds, seconds));
+    }
+
+    /*****************
+     * DISTRIBUTIONS *
+     *****************/
+
+    private double exponential(double mean) {
+        return -mean * Math.log(1 - random.nextDouble());
+    }
+
+    /**
+     * @return a number of days of at least one with the given mean
+     */
+    private int geometric(double mean) {
+        if (mean <= 1) {
+            return 1;
+        }
+        return 1 + (int) (Math.log(1 - random.nextDouble()) / Math.log(1 - 1 / mean));
+    }
+
+    /**
+     * @return the number of days of the given period, ends included, that
+     *         fall within the simulated days
+     */
+    private int daysInPeriod(int start, int end) {
+        return Math.max(0, Math.min(end, today + days - 1) - Math.max(start, today) + 1);
+    }
+}
@@ -0,0 +1,338 @@
+package perf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import javax.ejb.embeddable.EJBContainer;
+import javax.management.ObjectName;
+import javax.naming.Context;
+import rental.Days;
+import rental.ReservationConstraints;
+import rental.ReservationException;
+import session.CarRentalSessionLocal;
+import session.CarRentalSessionRemote;
+import session.ManagerSessionLocal;
+import session.ManagerSessionRemote;
+
+/**
+ * Performance regression suite. Boots the EJB module in an embedded container
+ * against an in-memory Derby database, loads a synthetic fleet, runs
+ * representative workloads through the session beans and compares the mean
+ * latency and number of SQL statements of every scenario with stored baselines.
+ * The measured calls must also keep within the query budgets of the session
+ * bean methods. Exits with status 1 if any scenario regressed or has no
+ * baseline, so the build fails.
+ *
+ * Scenarios ending in {@code .local} repeat a remote scenario through the
+ * local, pass-by-reference view of the bean, and the suite reports the
+ * latency that saves for in-process callers.
+ *
+ * Usage: PerformanceSuite <module directory> <baselines file>
+ */
+public class PerformanceSuite {
+
+    private static final String[] COMPANIES = {"Hertz", "Dockx"};
+    private static final String[] TYPES = {"Compact", "Sedan", "Break", "Top", "SUV"};
+    private static final int CARS_PER_TYPE = 40;
+    private static final int BOOKINGS = 2000;
+    private static final int WARMUP_CALLS = 50;
+    private static final int MEASURED_CALLS = 200;
+
+    private final Context context;
+    private final Random random = new Random(42);
+    private final int today = Days.toEpochDay(new Date());
+    private final Map<String, double[]> results = new LinkedHashMap<String, double[]>();
+
+    private PerformanceSuite(Context context) {
+        this.context = context;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File module = new File(args[0]);
+        File baselines = new File(args[1]);
+
+        // counts the statements and traces the calls, so their budgets are checked
+        System.setProperty("rental.trace.profiler", QueryCounter.class.getName());
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(EJBContainer.MODULES, module);
+        boolean passed = false;
+        try {
+            EJBContainer container = EJBContainer.createEJBContainer(properties);
+            PerformanceSuite suite = new PerformanceSuite(container.getContext());
+            try {
+                suite.load();
+                suite.runAll();
+            } finally {
+                container.close();
+            }
+            passed = suite.check(baselines, Boolean.getBoolean("perf.record"));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        // a container that failed to deploy leaves threads behind that keep the JVM alive
+        System.exit(passed ? 0 : 1);
+    }
+
+    /***********
+     * SESSION *
+     ***********/
+
+    private CarRentalSessionRemote newReservationSession(String renter) throws Exception {
+        CarRentalSessionRemote out = (CarRentalSessionRemote) context.lookup(
+                "java:global/CarRental-ejb/CarRentalSession!session.CarRentalSessionRemote");
+        out.setRenterName(renter);
+        return out;
+    }
+
+    private ManagerSessionRemote newManagerSession() throws Exception {
+        return (ManagerSessionRemote) context.lookup(
+                "java:global/CarRental-ejb/ManagerSession!session.ManagerSessionRemote");
+    }
+
+    private CarRentalSessionLocal newLocalReservationSession(String renter) throws Exception {
+        CarRentalSessionLocal out = (CarRentalSessionLocal) context.lookup(
+                "java:global/CarRental-ejb/CarRentalSession!session.CarRentalSessionLocal");
+        out.setRenterName(renter);
+        return out;
+    }
+
+    private ManagerSessionLocal newLocalManagerSession() throws Exception {
+        return (ManagerSessionLocal) context.lookup(
+                "java:global/CarRental-ejb/ManagerSession!session.ManagerSessionLocal");
+    }
+
+    /********
+     * DATA *
+     ********/
+
+    private void load() throws Exception {
+        ManagerSessionRemote manager = newManagerSession();
+        for (String company : COMPANIES) {
+            manager.addNewCompany(company);
+            int uid = 0;
+            for (int t = 0; t < TYPES.length; t++) {
+                manager.addNewCarType(TYPES[t], 4 + t % 2, 200 + 100 * t, 30 + 40 * t, t % 2 == 0, company);
+                for (int i = 0; i < CARS_PER_TYPE; i++) {
+                    manager.addNewCar(uid++, TYPES[t], company);
+                }
+            }
+        }
+        for (int i = 0; i < BOOKINGS; i++) {
+            CarRentalSessionRemote session = newReservationSession("renter" + (i % 100));
+            try {
+                session.createQuote(COMPANIES[i % COMPANIES.length], randomConstraints());
+                session.confirmQuotes();
+            } catch (ReservationException e) {
+                // sold out for that period, the fleet is busy enough
+            }
+        }
+    }
+
+    private ReservationConstraints randomConstraints() {
+        int start = today + random.nextInt(365);
+        return new ReservationConstraints(Days.toDate(start), Days.toDate(start + 1 + random.nextInt(10)),
+                TYPES[random.nextInt(TYPES.length)]);
+    }
+
+    /*************
+     * SCENARIOS *
+     *************/
+
+    private abstract class Scenario {
+
+        abstract void call(int i) throws Exception;
+    }
+
+    private void runAll() throws Exception {
+        final CarRentalSessionRemote session = newReservationSession("perf");
+        final ManagerSessionRemote manager = newManagerSession();
+
+        run("getAvailableCarTypes", new Scenario() {
+            @Override
+            void call(int i) {
+                ReservationConstraints c = randomConstraints();
+                session.getAvailableCarTypes(c.getStartDate(), c.getEndDate());
+            }
+        });
+        run("getCheapestCarType", new Scenario() {
+            @Override
+            void call(int i) {
+                ReservationConstraints c = randomConstraints();
+                session.getCheapestCarType(c.getStartDate(), c.getEndDate());
+            }
+        });
+        run("createQuote", new Scenario() {
+            @Override
+            void call(int i) {
+                try {
+                    session.createQuote(COMPANIES[i % COMPANIES.length], randomConstraints());
+                } catch (ReservationException e) {
+                    // measured all the same
+                }
+            }
+        });
+        run("confirmQuotes", new Scenario() {
+            @Override
+            void call(int i) throws Exception {
+                CarRentalSessionRemote booking = newReservationSession("perf" + i);
+                try {
+                    booking.createQuote(COMPANIES[i % COMPANIES.length], randomConstraints());
+                    booking.confirmQuotes();
+                } catch (ReservationException e) {
+                    // measured all the same
+                }
+            }
+        });
+        run("getNumberOfReservationsForCarType", new Scenario() {
+            @Override
+            void call(int i) {
+                manager.getNumberOfReservations(COMPANIES[i % COMPANIES.length], TYPES[i % TYPES.length]);
+            }
+        });
+        run("getNumberOfReservationsBy", new Scenario() {
+            @Override
+            void call(int i) {
+                manager.getNumberOfReservationsBy("renter" + (i % 100));
+            }
+        });
+        run("getMostPopularCarRentalCompany", new Scenario() {
+            @Override
+            void call(int i) {
+                manager.getMostPopularCarRentalCompany();
+            }
+        });
+
+        final CarRentalSessionLocal localSession = newLocalReservationSession("perf-local");
+        final ManagerSessionLocal localManager = newLocalManagerSession();
+        run("getAvailableCarTypes.local", new Scenario() {
+            @Override
+            void call(int i) {
+                ReservationConstraints c = randomConstraints();
+                localSession.getAvailableCarTypes(c.getStartDate(), c.getEndDate());
+            }
+        });
+        run("createQuote.local", new Scenario() {
+            @Override
+            void call(int i) {
+                try {
+                    localSession.createQuote(COMPANIES[i % COMPANIES.length], randomConstraints());
+                } catch (ReservationException e) {
+                    // measured all the same
+                }
+            }
+        });
+        run("getNumberOfReservationsForCarType.local", new Scenario() {
+            @Override
+            void call(int i) {
+                localManager.getNumberOfReservations(COMPANIES[i % COMPANIES.length], TYPES[i % TYPES.length]);
+            }
+        });
+        reportLocalSavings();
+    }
+
+    private void reportLocalSavings() {
+        for (Map.Entry<String, double[]> local : results.entrySet()) {
+            if (!local.getKey().endsWith(".local")) {
+                continue;
+            }
+            String name = local.getKey().substring(0, local.getKey().length() - ".local".length());
+            double[] remote = results.get(name);
+            if (remote != null) {
+                double saved = remote[0] - local.getValue()[0];
+                System.out.println(String.format("%-36s %10.1f us saved by the local view (%.0f%%)",
+                        name, saved, 100 * saved / remote[0]));
+            }
+        }
+    }
+
+    private void run(String name, Scenario scenario) throws Exception {
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            scenario.call(i);
+        }
+        long queries = queryCount();
+        long start = System.nanoTime();
+        // the read models are loaded now; the shared cache is off, so every call
+        // starts from a cold persistence context and a call over its budget fails
+        System.setProperty("rental.trace.enforceBudgets", "true");
+        try {
+            for (int i = 0; i < MEASURED_CALLS; i++) {
+                scenario.call(i);
+            }
+        } finally {
+            System.clearProperty("rental.trace.enforceBudgets");
+        }
+        double micros = (System.nanoTime() - start) / 1000.0 / MEASURED_CALLS;
+        double perCall = (double) (queryCount() - queries) / MEASURED_CALLS;
+        results.put(name, new double[]{micros, perCall});
+        System.out.println(String.format("%-36s %10.1f us %8.2f queries", name, micros, perCall));
+    }
+
+    private static long queryCount() throws Exception {
+        return (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(
+                new ObjectName(QueryCounter.OBJECT_NAME), "Count");
+    }
+
+    /*************
+     * BASELINES *
+     *************/
+
+    private boolean check(File file, boolean record) throws IOException {
+        Properties baselines = new Properties();
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                baselines.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        double tolerance = Double.parseDouble(baselines.getProperty("tolerance", "1.5"));
+
+        if (record) {
+            for (Map.Entry<String, double[]> result : results.entrySet()) {
+                baselines.setProperty(result.getKey() + ".micros", String.format("%.1f", result.getValue()[0]));
+                baselines.setProperty(result.getKey() + ".queries", String.format("%.2f", result.getValue()[1]));
+            }
+            OutputStream out = new FileOutputStream(file);
+            try {
+                baselines.store(out, "Baselines of the embedded-container performance suite (ant perf)");
+            } finally {
+                out.close();
+            }
+            System.out.println("Recorded new baselines in " + file);
+            return true;
+        }
+
+        List<String> regressions = new ArrayList<String>();
+        for (Map.Entry<String, double[]> result : results.entrySet()) {
+            String micros = baselines.getProperty(result.getKey() + ".micros");
+            String queries = baselines.getProperty(result.getKey() + ".queries");
+            if (micros == null || queries == null) {
+                regressions.add(result.getKey() + ": no baseline, record one with -Dperf.record=true");
+                continue;
+            }
+            if (result.getValue()[0] > Double.parseDouble(micros) * tolerance) {
+                regressions.add(String.format("%s: %.1f us, baseline %s us", result.getKey(), result.getValue()[0], micros));
+            }
+            if (result.getValue()[1] > Double.parseDouble(queries) * tolerance) {
+                regressions.add(String.format("%s: %.2f queries, baseline %s", result.getKey(), result.getValue()[1], queries));
+            }
+        }
+        for (String regression : regressions) {
+            System.err.println("Performance regression in " + regression);
+        }
+        return regressions.isEmpty();
+    }
+}
@@ -0,0 +1,48 @@
+package perf;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import session.TracingProfiler;
+
+/**
+ * EclipseLink profiler that counts the SQL statements the persistence unit
+ * executes against the database. The count is published as a platform MBean, so the
+ * suite can read it regardless of which class loader the container used for
+ * the application. Request tracing keeps working on top of it. The suite
+ * installs it through the {@code rental.trace.profiler} system property.
+ */
+public class QueryCounter extends TracingProfiler implements QueryCounterMBean {
+
+    public static final String OBJECT_NAME = "perf:type=QueryCounter";
+
+    private final AtomicLong count = new AtomicLong();
+
+    public QueryCounter() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (Exception e) {
+            Logger.getLogger(QueryCounter.class.getName()).log(Level.SEVERE, "Cannot publish query counter", e);
+        }
+    }
+
+    @Override
+    protected void statementExecuted(DatabaseQuery query) {
+        super.statementExecuted(query);
+        count.incrementAndGet();
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+}
@@ -0,0 +1,6 @@
+package perf;
+
+public interface QueryCounterMBean {
+
+    public long getCount();
+}
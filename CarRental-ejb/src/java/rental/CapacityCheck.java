@@ -0,0 +1,17 @@
+package rental;
+
+/**
+ * Tells whether a car type of a company has room for a period, counting the
+ * bookings of all its cars rather than looking for a single free car. Lets a
+ * {@link CarRentalCompany} ask a read model that keeps those counts instead
+ * of going through all of its reservations.
+ */
+public interface CapacityCheck {
+
+    /**
+     * @return whether fewer cars of the given type are booked than the
+     *         company has, on every day from {@code startDay} until
+     *         {@code endDay}, both inclusive
+     */
+    public boolean hasCapacity(String company, String carType, int startDay, int endDay);
+}
@@ -0,0 +1,105 @@
+package rental;
+
+/**
+ * Number of concurrent bookings per day of one car type, as a segment tree
+ * over epoch days with lazy range-add updates and range-max queries, both in
+ * O(log days). Nodes are created on first use, so the tree spans every
+ * representable day but only costs memory for the days that were booked.
+ */
+public class CapacityTree {
+
+    // epoch days 0 until 2^22, which runs past the year 13000
+    private static final int SPAN = 1 << 22;
+
+    private int[] left = new int[64];
+    private int[] right = new int[64];
+    // the maximum of a node's range, including its own pending addition
+    private int[] max = new int[64];
+    // added to the whole range of a node but not pushed to its children
+    private int[] pending = new int[64];
+    private int size = 1;
+
+    /**
+     * Adds the given number of bookings to every day from {@code startDay}
+     * until {@code endDay}, both inclusive.
+     */
+    public void add(int startDay, int endDay, int bookings) {
+        check(startDay, endDay);
+        add(0, 0, SPAN - 1, startDay, endDay, bookings);
+    }
+
+    /**
+     * @return the largest number of concurrent bookings on any day from
+     *         {@code startDay} until {@code endDay}, both inclusive
+     */
+    public int max(int startDay, int endDay) {
+        check(startDay, endDay);
+        return max(0, 0, SPAN - 1, startDay, endDay);
+    }
+
+    private static void check(int startDay, int endDay) {
+        if (startDay < 0 || endDay >= SPAN || endDay < startDay)
+            throw new IllegalArgumentException("Illegal given period " + startDay + "-" + endDay);
+    }
+
+    private void add(int node, int from, int until, int startDay, int endDay, int bookings) {
+        if (startDay <= from && until <= endDay) {
+            max[node] += bookings;
+            pending[node] += bookings;
+            return;
+        }
+        int middle = (from + until) >>> 1;
+        if (startDay <= middle) {
+            add(child(node, true), from, middle, startDay, endDay, bookings);
+        }
+        if (endDay > middle) {
+            add(child(node, false), middle + 1, until, startDay, endDay, bookings);
+        }
+        max[node] = pending[node] + Math.max(maxOf(left[node]), maxOf(right[node]));
+    }
+
+    private int max(int node, int from, int until, int startDay, int endDay) {
+        if (startDay <= from && until <= endDay) {
+            return max[node];
+        }
+        int middle = (from + until) >>> 1;
+        int out = Integer.MIN_VALUE;
+        if (startDay <= middle) {
+            // a missing child has never been booked
+            out = left[node] == 0 ? 0 : max(left[node], from, middle, startDay, endDay);
+        }
+        if (endDay > middle) {
+            out = Math.max(out, right[node] == 0 ? 0 : max(right[node], middle + 1, until, startDay, endDay));
+        }
+        return out + pending[node];
+    }
+
+    private int maxOf(int node) {
+        return node == 0 ? 0 : max[node];
+    }
+
+    private int child(int node, boolean isLeft) {
+        int[] children = isLeft ? left : right;
+        if (children[node] == 0) {
+            if (size == max.length) {
+                grow();
+                children = isLeft ? left : right;
+            }
+            children[node] = size++;
+        }
+        return children[node];
+    }
+
+    private void grow() {
+        left = copyOf(left);
+        right = copyOf(right);
+        max = copyOf(max);
+        pending = copyOf(pending);
+    }
+
+    private static int[] copyOf(int[] array) {
+        int[] out = new int[array.length * 2];
+        System.arraycopy(array, 0, out, 0, array.length);
+        return out;
+    }
+}
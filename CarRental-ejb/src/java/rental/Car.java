@@ -1,18 +1,24 @@
 package rental;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.List;
 import static javax.persistence.CascadeType.ALL;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import static javax.persistence.GenerationType.AUTO;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.JoinTable;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
+import javax.persistence.Table;
 
 @Entity
+@Table(indexes = @Index(name = "CAR_TYPE", columnList = "TYPE_NAME"))
 public class Car implements Serializable{
 
     @Id
@@ -24,8 +30,23 @@ public class Car implements Serializable{
     @ManyToOne
     private CarType type;
     
+    // bookings that have not ended yet; the only ones availability checks look at.
+    // The join table and its columns spell out the JPA default names, which
+    // existing databases already use, so that the index can refer to them.
     @OneToMany(cascade = ALL)
-    private Set<Reservation> reservations;
+    @JoinTable(name = "CAR_RESERVATION",
+            joinColumns = @JoinColumn(name = "CAR_DATABASEID"),
+            inverseJoinColumns = @JoinColumn(name = "RESERVATIONS_ID"),
+            indexes = @Index(name = "CAR_RESERVATION_CAR", columnList = "CAR_DATABASEID"))
+    private List<Reservation> reservations;
+
+    // bookings that ended in the past, kept for reporting only
+    @OneToMany(cascade = ALL)
+    @JoinTable(name = "CAR_ARCHIVED_RESERVATIONS",
+            joinColumns = @JoinColumn(name = "CAR_DATABASEID"),
+            inverseJoinColumns = @JoinColumn(name = "ARCHIVEDRESERVATIONS_ID"),
+            indexes = @Index(name = "CAR_ARCHIVED_RESERVATIONS_CAR", columnList = "CAR_DATABASEID"))
+    private List<Reservation> archivedReservations;
 
     public Car() {
     }
@@ -37,7 +58,8 @@ public class Car implements Serializable{
     public Car(int uid, CarType type) {
     	this.id = uid;
         this.type = type;
-        this.reservations = new HashSet<Reservation>();
+        this.reservations = new ArrayList<Reservation>();
+        this.archivedReservations = new ArrayList<Reservation>();
     }
 
     /******
@@ -76,12 +98,71 @@ public class Car implements Serializable{
         reservations.add(res);
     }
     
-    public void removeReservation(Reservation reservation) {
-        // equals-method for Reservation is required!
-        reservations.remove(reservation);
+    /**
+     * Removes the given reservation. Reservations are matched on their
+     * generated id rather than on equality, so identical bookings of the
+     * same renter are told apart.
+     */
+    public boolean removeReservation(Reservation reservation) {
+        return remove(reservations, reservation) || remove(archivedReservations, reservation);
+    }
+
+    private static boolean remove(List<Reservation> from, Reservation reservation) {
+        for (Iterator<Reservation> it = from.iterator(); it.hasNext();) {
+            Reservation r = it.next();
+            if (r == reservation || (reservation.getId() != 0 && r.getId() == reservation.getId())) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
     }
 
-    public Set<Reservation> getReservations() {
+    public List<Reservation> getReservations() {
         return reservations;
     }
+
+    /***********
+     * ARCHIVE *
+     ***********/
+
+    /**
+     * Moves all reservations that ended before the given date to the archive.
+     *
+     * @return the number of archived reservations
+     */
+    public int archiveReservationsEndedBefore(Date date) {
+        int archived = 0;
+        for (Iterator<Reservation> it = reservations.iterator(); it.hasNext();) {
+            Reservation r = it.next();
+            if (r.getEndDate().before(date)) {
+                it.remove();
+                archivedReservations.add(r);
+                archived++;
+            }
+        }
+        return archived;
+    }
+
+    public void addArchivedReservation(Reservation res) {
+        archivedReservations.add(res);
+    }
+
+    public List<Reservation> getArchivedReservations() {
+        return archivedReservations;
+    }
+
+    /**
+     * All reservations ever made for this car, current and archived.
+     */
+    public List<Reservation> getReservationHistory() {
+        List<Reservation> out = new ArrayList<Reservation>(reservations.size() + archivedReservations.size());
+        out.addAll(reservations);
+        out.addAll(archivedReservations);
+        return out;
+    }
+
+    public int getNbReservationsInHistory() {
+        return reservations.size() + archivedReservations.size();
+    }
 }
\ No newline at end of file
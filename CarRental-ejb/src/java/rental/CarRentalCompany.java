@@ -1,23 +1,32 @@
 package rental;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.annotation.Resource;
-import javax.ejb.EJBContext;
-import javax.ejb.embeddable.EJBContainer;
 import static javax.persistence.CascadeType.ALL;
 import static javax.persistence.CascadeType.PERSIST;
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.JoinColumn;
+import javax.persistence.JoinTable;
+import javax.persistence.Lob;
 import javax.persistence.ManyToMany;
 import javax.persistence.OneToMany;
+import javax.persistence.Transient;
 
 @Entity
 public class CarRentalCompany implements Serializable{
@@ -28,11 +37,49 @@ public class CarRentalCompany implements Serializable{
     private String name;
     
     @OneToMany(cascade = ALL)
+    @JoinTable(name = "CARRENTALCOMPANY_CAR",
+            joinColumns = @JoinColumn(name = "CARRENTALCOMPANY_NAME"),
+            inverseJoinColumns = @JoinColumn(name = "CARS_DATABASEID"),
+            indexes = @Index(name = "CARRENTALCOMPANY_CAR_COMPANY", columnList = "CARRENTALCOMPANY_NAME"))
     private List<Car> cars;
   
     @ManyToMany(cascade = PERSIST) 
     private Set<CarType> carTypes = new HashSet<CarType>();
 
+    @Lob
+    private PricingStrategy pricingStrategy;
+
+    @Transient
+    private List<RentalEvent> pendingEvents = new ArrayList<RentalEvent>();
+
+    @Transient
+    private Map<Integer, Car> carIndex;
+
+    @Transient
+    private ReservationJournal journal;
+
+    // reservations confirmed in the current transaction, not yet in the journal
+    @Transient
+    private List<Reservation> journaled = new ArrayList<Reservation>();
+
+    // picks a car among the free ones
+    @Transient
+    private Random random = new Random();
+
+    // tells which bookings have started and must keep their car
+    @Transient
+    private Clock clock = Clock.SYSTEM;
+
+    @Transient
+    private CapacityCheck capacity;
+
+    @Transient
+    private MappedReservationStore store;
+
+    // bookings changed in the current transaction, which the store only learns about once it commits
+    @Transient
+    private List<RentalEvent> unstored = new ArrayList<RentalEvent>();
+
     public CarRentalCompany() {
     }
 
@@ -44,6 +91,7 @@ public class CarRentalCompany implements Serializable{
     public CarRentalCompany(String name, List<Car> cars) {
         logger.log(Level.INFO, "<{0}> Car Rental Company {0} starting up...", name);
         setName(name);
+        this.cars = new ArrayList<Car>();
         if (cars != null){
             this.cars = cars;
             for (Car car : cars) {
@@ -88,7 +136,7 @@ public class CarRentalCompany implements Serializable{
     public Set<CarType> getAvailableCarTypes(Date start, Date end) {
         Set<CarType> availableCarTypes = new HashSet<CarType>();
         for (Car car : cars) {
-            if (car.isAvailable(start, end)) {
+            if (isAvailable(car, start, end)) {
                 availableCarTypes.add(car.getType());
             }
         }
@@ -104,16 +152,29 @@ public class CarRentalCompany implements Serializable{
      *********/
     
     public Car getCar(int uid) {
-        for (Car car : cars) {
-            if (car.getId() == uid) {
-                return car;
+        if (carIndex == null) {
+            carIndex = new HashMap<Integer, Car>();
+            for (Car car : cars) {
+                carIndex.put(car.getId(), car);
             }
         }
-        throw new IllegalArgumentException("<" + name + "> No car with uid " + uid);
+        Car car = carIndex.get(uid);
+        if (car == null) {
+            throw new IllegalArgumentException("<" + name + "> No car with uid " + uid);
+        }
+        return car;
     }
 
     public void addCar(Car car) {
         cars.add(car);
+        if (carIndex != null) {
+            carIndex.put(car.getId(), car);
+        }
+        raise(RentalEvent.carAdded(name, car));
+    }
+
+    public List<Car> getAllCars() {
+        return cars;
     }
     
     public Set<Car> getCars(CarType type) {
@@ -139,7 +200,7 @@ public class CarRentalCompany implements Serializable{
     private List<Car> getAvailableCars(String carType, Date start, Date end) {
         List<Car> availableCars = new LinkedList<Car>();
         for (Car car : cars) {
-            if (car.getType().getName().equals(carType) && car.isAvailable(start, end)) {
+            if (car.getType().getName().equals(carType) && isAvailable(car, start, end)) {
                 availableCars.add(car);
             }
         }
@@ -156,47 +217,229 @@ public class CarRentalCompany implements Serializable{
                 new Object[]{name, guest, constraints.toString()});
 
         CarType type = getType(constraints.getCarType());
+        if (!constraints.matches(type)) {
+            throw new ReservationException("<" + name
+                    + "> Car type " + type.getName() + " does not satisfy the given constraints.");
+        }
 
-        if (!isAvailable(constraints.getCarType(), constraints.getStartDate(), constraints.getEndDate())) {
+        // the capacity check first, as it answers without loading any reservations
+        if (!hasCapacity(type, constraints.getStartDate(), constraints.getEndDate())
+                && !isAvailable(constraints.getCarType(), constraints.getStartDate(), constraints.getEndDate())) {
             throw new ReservationException("<" + name
                     + "> No cars available to satisfy the given constraints.");
         }
 
-        double price = calculateRentalPrice(type.getRentalPricePerDay(), constraints.getStartDate(), constraints.getEndDate());
+        double price = calculateRentalPrice(type, constraints.getStartDate(), constraints.getEndDate());
 
         return new Quote(guest, constraints.getStartDate(), constraints.getEndDate(), getName(), constraints.getCarType(), price);
     }
 
-    // Implementation can be subject to different pricing strategies
-    private double calculateRentalPrice(double rentalPricePerDay, Date start, Date end) {
-        return rentalPricePerDay * Math.ceil((end.getTime() - start.getTime())
-                / (1000 * 60 * 60 * 24D));
+    /**
+     * Creates a quote for every request, all of which must be addressed to
+     * this company. The cars of each requested type are looked up at most once
+     * for the whole batch, and only when the capacity check cannot vouch for
+     * the request. Results are returned in the order of the requests; a
+     * request without a valid period or car type fails on its own.
+     */
+    public List<QuoteResult> createQuotes(List<QuoteRequest> requests, String guest) {
+        logger.log(Level.INFO, "<{0}> Creating {1} tentative reservations for {2}",
+                new Object[]{name, requests.size(), guest});
+        Map<String, Set<Car>> carsByType = new HashMap<String, Set<Car>>();
+        List<QuoteResult> out = new ArrayList<QuoteResult>(requests.size());
+        for (QuoteRequest request : requests) {
+            ReservationConstraints constraints = request.getConstraints();
+            if (constraints == null || constraints.getStartDate() == null || constraints.getEndDate() == null) {
+                out.add(QuoteResult.failure(request, "<" + name + "> No period given"));
+                continue;
+            }
+            if (!constraints.getStartDate().before(constraints.getEndDate())) {
+                out.add(QuoteResult.failure(request, "<" + name + "> Illegal given period"));
+                continue;
+            }
+            CarType type;
+            try {
+                type = getType(constraints.getCarType());
+            } catch (IllegalArgumentException e) {
+                out.add(QuoteResult.failure(request, e.getMessage()));
+                continue;
+            }
+            if (!constraints.matches(type)) {
+                out.add(QuoteResult.failure(request, "<" + name
+                        + "> Car type " + type.getName() + " does not satisfy the given constraints."));
+                continue;
+            }
+            if (!hasCapacity(type, constraints.getStartDate(), constraints.getEndDate())) {
+                Set<Car> candidates = carsByType.get(type.getName());
+                if (candidates == null) {
+                    candidates = getCars(type);
+                    carsByType.put(type.getName(), candidates);
+                }
+                if (!isAnyAvailable(candidates, constraints.getStartDate(), constraints.getEndDate())) {
+                    out.add(QuoteResult.failure(request, "<" + name
+                            + "> No cars available to satisfy the given constraints."));
+                    continue;
+                }
+            }
+            double price = calculateRentalPrice(type, constraints.getStartDate(), constraints.getEndDate());
+            out.add(QuoteResult.success(request, new Quote(guest, constraints.getStartDate(), constraints.getEndDate(),
+                    getName(), type.getName(), price)));
+        }
+        return out;
+    }
+
+    private boolean isAnyAvailable(Collection<Car> cars, Date start, Date end) {
+        for (Car car : cars) {
+            if (isAvailable(car, start, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private double calculateRentalPrice(CarType type, Date start, Date end) {
+        return getPricingStrategy().getRentalPrice(type, start, end);
+    }
+
+    /***********
+     * PRICING *
+     ***********/
+
+    public PricingStrategy getPricingStrategy() {
+        if (pricingStrategy == null) {
+            pricingStrategy = new DailyRatePricing();
+        }
+        return pricingStrategy;
+    }
+
+    public void setPricingStrategy(PricingStrategy pricingStrategy) {
+        logger.log(Level.INFO, "<{0}> Switching to pricing strategy {1}", new Object[]{name, pricingStrategy});
+        this.pricingStrategy = pricingStrategy;
     }
 
     public Reservation confirmQuote(Quote quote) throws ReservationException {
         logger.log(Level.INFO, "<{0}> Reservation of {1}", new Object[]{name, quote.toString()});
         List<Car> availableCars = getAvailableCars(quote.getCarType(), quote.getStartDate(), quote.getEndDate());
-        if (availableCars.isEmpty()) {
-            throw new ReservationException("Reservation failed, all cars of type " + quote.getCarType()
-                    + " are unavailable from " + quote.getStartDate() + " to " + quote.getEndDate());
+        Car car;
+        if (!availableCars.isEmpty()) {
+            car = availableCars.get(random.nextInt(availableCars.size()));
+        } else {
+            car = reassignCars(getType(quote.getCarType()), quote.getStartDate(), quote.getEndDate());
+            if (car == null) {
+                throw new ReservationException("Reservation failed, all cars of type " + quote.getCarType()
+                        + " are unavailable from " + quote.getStartDate() + " to " + quote.getEndDate());
+            }
         }
-        Car car = availableCars.get((int) (Math.random() * availableCars.size()));
 
         Reservation res = new Reservation(quote, car.getId());
-        car.addReservation(res);
+        if (journal != null) {
+            journaled.add(res);
+        } else {
+            car.addReservation(res);
+        }
+        raise(RentalEvent.reservationConfirmed(name, car.getType(), res));
         return res;
     }
 
     public void cancelReservation(Reservation res) {
         logger.log(Level.INFO, "<{0}> Cancelling reservation {1}", new Object[]{name, res.toString()});
-        getCar(res.getCarId()).removeReservation(res);
+        Car car = getCar(res.getCarId());
+        if (car.removeReservation(res)) {
+            raise(RentalEvent.reservationCancelled(name, car.getType(), res));
+        }
     }
     
-    public Set<Reservation> getReservationsBy(String renter) {
+    /**
+     * Moves the given reservation to another period. The car it has keeps it
+     * if it is free on the days that are added to the booking; otherwise it
+     * goes to another car of the same type that is free for the whole new
+     * period, if need be after handing other bookings of that type to other
+     * cars.
+     *
+     * @throws ReservationException if no car of the type is free for the new
+     *         period; the reservation is left as it was
+     */
+    public Reservation modifyReservation(Reservation res, Date start, Date end) throws ReservationException {
+        if (!start.before(end))
+            throw new IllegalArgumentException("Illegal given period");
+        logger.log(Level.INFO, "<{0}> Moving reservation {1} to {2} until {3}",
+                new Object[]{name, res.toString(), start, end});
+        Car car = getCar(res.getCarId());
+        CarType type = car.getType();
+        int oldStartDay = Days.toEpochDay(res.getStartDate());
+        int oldEndDay = Days.toEpochDay(res.getEndDate());
+        int startDay = Days.toEpochDay(start);
+        int endDay = Days.toEpochDay(end);
+
+        boolean keepsCar;
+        if (endDay < oldStartDay || startDay > oldEndDay) {
+            keepsCar = isFree(car, startDay, endDay);
+        } else {
+            // the car is known to be free on the days the booking has already
+            keepsCar = isFree(car, startDay, oldStartDay - 1) && isFree(car, oldEndDay + 1, endDay);
+        }
+        if (!car.removeReservation(res)) {
+            throw new ReservationException("<" + name + "> No such reservation " + res.getId());
+        }
+        Car to = car;
+        if (!keepsCar) {
+            List<Car> availableCars = getAvailableCars(type.getName(), start, end);
+            to = !availableCars.isEmpty()
+                    ? availableCars.get(random.nextInt(availableCars.size()))
+                    : reassignCars(type, start, end);
+            if (to == null) {
+                car.addReservation(res);
+                throw new ReservationException("Modification failed, all cars of type " + type.getName()
+                        + " are unavailable from " + start + " to " + end);
+            }
+        }
+
+        // published as a cancellation of the old booking and a confirmation of the new one
+        raise(RentalEvent.reservationCancelled(name, type, res.copy()));
+        res.reschedule(start, end, calculateRentalPrice(type, start, end));
+        res.setCarId(to.getId());
+        to.addReservation(res);
+        raise(RentalEvent.reservationConfirmed(name, type, res));
+        return res;
+    }
+
+    /**
+     * Adds a reservation restored from a snapshot, unless its car already
+     * holds the same booking.
+     *
+     * @return whether the reservation was added
+     */
+    public boolean restoreReservation(Reservation res) throws ReservationException {
+        Car car = getCar(res.getCarId());
+        if (findReservation(res) != null) {
+            return false;
+        }
+        car.addReservation(res);
+        raise(RentalEvent.reservationConfirmed(name, car.getType(), res));
+        return true;
+    }
+
+    /**
+     * @return the reservation of the same car, renter and period as the given
+     *         one, or null if there is none
+     */
+    public Reservation findReservation(Reservation like) {
+        int startDay = Days.toEpochDay(like.getStartDate());
+        int endDay = Days.toEpochDay(like.getEndDate());
+        for (Reservation r : getCar(like.getCarId()).getReservationHistory()) {
+            if (r.getCarRenter().equals(like.getCarRenter())
+                    && Days.toEpochDay(r.getStartDate()) == startDay
+                    && Days.toEpochDay(r.getEndDate()) == endDay) {
+                return r;
+            }
+        }
+        return null;
+    }
+    
+    public List<Reservation> getReservationsBy(String renter) {
         logger.log(Level.INFO, "<{0}> Retrieving reservations by {1}", new Object[]{name, renter});
-        Set<Reservation> out = new HashSet<Reservation>();
+        List<Reservation> out = new ArrayList<Reservation>();
         for(Car c : cars) {
-            for(Reservation r : c.getReservations()) {
+            for(Reservation r : c.getReservationHistory()) {
                 if(r.getCarRenter().equals(renter))
                     out.add(r);
             }
@@ -217,8 +460,332 @@ public class CarRentalCompany implements Serializable{
     public int getTotalNbReservations() {
         int nbReservations = 0;
         for (Car car : cars) {
-            nbReservations += car.getReservations().size();
+            nbReservations += car.getNbReservationsInHistory();
         }
         return nbReservations;
     }
+
+    public int archiveReservationsEndedBefore(Date date) {
+        int archived = 0;
+        for (Car car : cars) {
+            archived += car.archiveReservationsEndedBefore(date);
+        }
+        if (archived > 0) {
+            logger.log(Level.INFO, "<{0}> Archived {1} past reservations", new Object[]{name, archived});
+        }
+        return archived;
+    }
+
+    /******************
+     * CAR ASSIGNMENT *
+     ******************/
+
+    /**
+     * Sets the source of the choice among free cars, so that a simulation
+     * can repeat it.
+     */
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Sets the source of the current day, so that a simulation can run on
+     * simulated days.
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Lets quotes for a type without a single free car go through when the
+     * given check finds the type has room, since its bookings can then be
+     * dealt out over its cars again at confirmation.
+     */
+    public void attachCapacityCheck(CapacityCheck capacity) {
+        this.capacity = capacity;
+    }
+
+    public boolean hasCapacityCheck() {
+        return capacity != null;
+    }
+
+    /**
+     * @return whether fewer cars of the given type are booked than it has, on
+     *         every day of the given period, even if no single car is free for
+     *         all of it; false without a capacity check
+     */
+    private boolean hasCapacity(CarType type, Date start, Date end) {
+        if (journal != null || capacity == null) {
+            // journaled bookings cannot be dealt out again
+            return false;
+        }
+        return capacity.hasCapacity(name, type.getName(), Days.toEpochDay(start), Days.toEpochDay(end));
+    }
+
+    /**
+     * Frees a car of the given type for the given period by dealing the
+     * bookings of that type that have not started yet out over its cars
+     * again. Handing every booking, in order of start day, to the car that
+     * has been free the longest uses no more cars than are booked on the
+     * busiest day, so this succeeds whenever the type has capacity. Bookings
+     * that have started keep their car.
+     *
+     * @return the car that is now free for the period, or null if the type
+     *         has no capacity for it
+     */
+    private Car reassignCars(CarType type, Date start, Date end) {
+        if (journal != null) {
+            return null;
+        }
+        int today = clock.today();
+        final Map<Reservation, Integer> startDays = new IdentityHashMap<Reservation, Integer>();
+        Map<Reservation, Car> owners = new IdentityHashMap<Reservation, Car>();
+        Map<Car, Integer> freeFrom = new HashMap<Car, Integer>();
+        List<Reservation> movable = new ArrayList<Reservation>();
+        List<Car> fleet = new ArrayList<Car>(getCars(type));
+        for (Car car : fleet) {
+            int free = Integer.MIN_VALUE;
+            for (Reservation r : car.getReservations()) {
+                int startDay = Days.toEpochDay(r.getStartDate());
+                if (startDay <= today) {
+                    free = Math.max(free, Days.toEpochDay(r.getEndDate()) + 1);
+                } else {
+                    startDays.put(r, startDay);
+                    owners.put(r, car);
+                    movable.add(r);
+                }
+            }
+            freeFrom.put(car, free);
+        }
+        Reservation wanted = new Reservation(new Quote(null, start, end, name, type.getName(), 0), -1);
+        startDays.put(wanted, Days.toEpochDay(start));
+        movable.add(wanted);
+        Collections.sort(movable, new Comparator<Reservation>() {
+            @Override
+            public int compare(Reservation a, Reservation b) {
+                return startDays.get(a).compareTo(startDays.get(b));
+            }
+        });
+
+        Map<Reservation, Car> assigned = new IdentityHashMap<Reservation, Car>();
+        for (Reservation r : movable) {
+            Car best = null;
+            for (Car car : fleet) {
+                int free = freeFrom.get(car);
+                if (free <= startDays.get(r) && (best == null || free < freeFrom.get(best))) {
+                    best = car;
+                }
+            }
+            if (best == null) {
+                return null;
+            }
+            assigned.put(r, best);
+            freeFrom.put(best, Days.toEpochDay(r.getEndDate()) + 1);
+        }
+
+        int moved = 0;
+        for (Map.Entry<Reservation, Car> entry : assigned.entrySet()) {
+            Car from = owners.get(entry.getKey());
+            if (from != null && from != entry.getValue()) {
+                move(entry.getKey(), from, entry.getValue());
+                moved++;
+            }
+        }
+        logger.log(Level.INFO, "<{0}> Moved {1} bookings of type {2} to other cars",
+                new Object[]{name, moved, type.getName()});
+        return assigned.get(wanted);
+    }
+
+    /**
+     * Moves the given reservation to another car of its type, as recorded in
+     * an incremental snapshot.
+     */
+    public void moveReservation(Reservation res, int carId) {
+        move(res, getCar(res.getCarId()), getCar(carId));
+    }
+
+    private void move(Reservation res, Car from, Car to) {
+        from.removeReservation(res);
+        res.setCarId(to.getId());
+        to.addReservation(res);
+        raise(RentalEvent.reservationMoved(name, to.getType(), res, from.getId()));
+    }
+
+    /****************
+     * AVAILABILITY *
+     ****************/
+
+    private boolean isAvailable(Car car, Date start, Date end) {
+        if (journal != null && !isFreeInJournal(car, start, end)) {
+            return false;
+        }
+        if (store != null) {
+            if (!start.before(end))
+                throw new IllegalArgumentException("Illegal given period");
+            return isFreeInStore(car, Days.toEpochDay(start), Days.toEpochDay(end));
+        }
+        return car.isAvailable(start, end);
+    }
+
+    /**
+     * @return whether the given car is free on every day from
+     *         {@code startDay} until {@code endDay}, which holds for an empty
+     *         range
+     */
+    private boolean isFree(Car car, int startDay, int endDay) {
+        if (endDay < startDay) {
+            return true;
+        }
+        if (journal != null && !isFreeInJournal(car, Days.toDate(startDay), Days.toDate(endDay))) {
+            return false;
+        }
+        if (store != null) {
+            return isFreeInStore(car, startDay, endDay);
+        }
+        for (Reservation r : car.getReservations()) {
+            if (Days.toEpochDay(r.getStartDate()) <= endDay && Days.toEpochDay(r.getEndDate()) >= startDay) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*********************
+     * RESERVATION STORE *
+     *********************/
+
+    /**
+     * Lets availability checks of this company read the given off-heap store
+     * instead of the reservations of every car. The store holds the committed
+     * bookings; those changed in the current transaction are laid over it.
+     */
+    public void attachReservationStore(MappedReservationStore store) {
+        this.store = store;
+    }
+
+    public boolean hasReservationStore() {
+        return store != null;
+    }
+
+    private boolean isFreeInStore(Car car, int startDay, int endDay) {
+        if (unstored.isEmpty()) {
+            return store.isFree(car.getId(), startDay, endDay, null);
+        }
+        // the bookings of this car added in the transaction, as pairs of days, and
+        // the start days of the stored ones it removed
+        List<Integer> added = new ArrayList<Integer>();
+        List<Integer> removed = new ArrayList<Integer>();
+        for (RentalEvent event : unstored) {
+            boolean removes = event.getKind() == RentalEvent.Kind.RESERVATION_CANCELLED
+                    ? event.getCarId() == car.getId()
+                    : event.getKind() == RentalEvent.Kind.RESERVATION_MOVED && event.getPreviousCarId() == car.getId();
+            if (removes) {
+                int i = indexOf(added, event.getStartDay(), event.getEndDay());
+                if (i >= 0) {
+                    added.remove(i + 1);
+                    added.remove(i);
+                } else {
+                    removed.add(event.getStartDay());
+                }
+            } else if (event.getKind() != RentalEvent.Kind.RESERVATION_CANCELLED && event.getCarId() == car.getId()) {
+                added.add(event.getStartDay());
+                added.add(event.getEndDay());
+            }
+        }
+        for (int i = 0; i < added.size(); i += 2) {
+            if (added.get(i) <= endDay && added.get(i + 1) >= startDay) {
+                return false;
+            }
+        }
+        int[] ignored = new int[removed.size()];
+        for (int i = 0; i < ignored.length; i++) {
+            ignored[i] = removed.get(i);
+        }
+        return store.isFree(car.getId(), startDay, endDay, ignored);
+    }
+
+    private static int indexOf(List<Integer> periods, int startDay, int endDay) {
+        for (int i = 0; i < periods.size(); i += 2) {
+            if (periods.get(i) == startDay && periods.get(i + 1) == endDay) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /***********
+     * JOURNAL *
+     ***********/
+
+    /**
+     * Lets confirmations of this company go to the given journal instead of
+     * the entity graph. The caller must append {@link #drainJournaled()} to
+     * the journal, while holding the company's journal lock, before its
+     * transaction commits.
+     */
+    public void attachJournal(ReservationJournal journal) {
+        this.journal = journal;
+    }
+
+    public boolean hasJournal() {
+        return journal != null;
+    }
+
+    public List<Reservation> drainJournaled() {
+        List<Reservation> out = journaled;
+        journaled = new ArrayList<Reservation>();
+        return out;
+    }
+
+    /**
+     * Adds a reservation read back from the journal to its car. It was
+     * announced when it was confirmed, unless it is replayed after a restart.
+     */
+    public void addJournaledReservation(Reservation res, boolean replayed) {
+        Car car = getCar(res.getCarId());
+        car.addReservation(res);
+        if (replayed) {
+            raise(RentalEvent.reservationConfirmed(name, car.getType(), res));
+        }
+    }
+
+    private boolean isFreeInJournal(Car car, Date start, Date end) {
+        int startDay = Days.toEpochDay(start);
+        int endDay = Days.toEpochDay(end);
+        if (!journal.isFree(name, car.getId(), startDay, endDay)) {
+            return false;
+        }
+        for (Reservation res : journaled) {
+            if (res.getCarId() == car.getId()
+                    && Days.toEpochDay(res.getStartDate()) <= endDay
+                    && Days.toEpochDay(res.getEndDate()) >= startDay) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**********
+     * EVENTS *
+     **********/
+
+    private void raise(RentalEvent event) {
+        if (pendingEvents == null) {
+            pendingEvents = new ArrayList<RentalEvent>();
+        }
+        pendingEvents.add(event);
+        if (store != null && event.getKind() != RentalEvent.Kind.CAR_ADDED) {
+            unstored.add(event);
+        }
+    }
+
+    /**
+     * Returns the events raised since the last call and forgets them. The
+     * caller is responsible for publishing them once its transaction commits.
+     */
+    public List<RentalEvent> drainEvents() {
+        List<RentalEvent> out = pendingEvents == null ? new ArrayList<RentalEvent>() : pendingEvents;
+        pendingEvents = new ArrayList<RentalEvent>();
+        return out;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,95 @@
+package rental;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * The car types of every company, indexed by whether smoking is allowed, then
+ * by number of seats, then by trunk space, so a search on those attributes
+ * only visits the types that satisfy them. The price is checked per type.
+ * Instances are not thread-safe.
+ */
+public class CarTypeIndex {
+
+    // smoking allowed, seats and trunk space to the types with those attributes
+    private final Map<Boolean, TreeMap<Integer, TreeMap<Float, List<Entry>>>> bySmoking = new TreeMap<Boolean, TreeMap<Integer, TreeMap<Float, List<Entry>>>>();
+    private final Set<List<String>> indexed = new HashSet<List<String>>();
+
+    /**
+     * Adds the given type of the given company, unless it is there already.
+     */
+    public void add(String company, CarType type) {
+        List<String> key = new ArrayList<String>(2);
+        key.add(company);
+        key.add(type.getName());
+        if (!indexed.add(key)) {
+            return;
+        }
+        TreeMap<Integer, TreeMap<Float, List<Entry>>> bySeats = bySmoking.get(type.isSmokingAllowed());
+        if (bySeats == null) {
+            bySeats = new TreeMap<Integer, TreeMap<Float, List<Entry>>>();
+            bySmoking.put(type.isSmokingAllowed(), bySeats);
+        }
+        TreeMap<Float, List<Entry>> byTrunk = bySeats.get(type.getNbOfSeats());
+        if (byTrunk == null) {
+            byTrunk = new TreeMap<Float, List<Entry>>();
+            bySeats.put(type.getNbOfSeats(), byTrunk);
+        }
+        List<Entry> entries = byTrunk.get(type.getTrunkSpace());
+        if (entries == null) {
+            entries = new ArrayList<Entry>();
+            byTrunk.put(type.getTrunkSpace(), entries);
+        }
+        entries.add(new Entry(company, type));
+    }
+
+    /**
+     * @return the types, with their company, whose name and attributes
+     *         satisfy the given constraints; the period is not checked
+     */
+    public List<Entry> find(ReservationConstraints constraints) {
+        List<Entry> out = new ArrayList<Entry>();
+        for (Map.Entry<Boolean, TreeMap<Integer, TreeMap<Float, List<Entry>>>> smoking : bySmoking.entrySet()) {
+            if (constraints.getSmokingAllowed() != null && !constraints.getSmokingAllowed().equals(smoking.getKey())) {
+                continue;
+            }
+            Map<Integer, TreeMap<Float, List<Entry>>> bySeats = constraints.getMinSeats() == null
+                    ? smoking.getValue() : smoking.getValue().tailMap(constraints.getMinSeats(), true);
+            for (TreeMap<Float, List<Entry>> byTrunk : bySeats.values()) {
+                Map<Float, List<Entry>> matching = constraints.getMinTrunkSpace() == null
+                        ? byTrunk : byTrunk.tailMap(constraints.getMinTrunkSpace(), true);
+                for (List<Entry> entries : matching.values()) {
+                    for (Entry entry : entries) {
+                        if (constraints.matches(entry.getType())) {
+                            out.add(entry);
+                        }
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    public static class Entry {
+
+        private final String company;
+        private final CarType type;
+
+        Entry(String company, CarType type) {
+            this.company = company;
+            this.type = type;
+        }
+
+        public String getCompany() {
+            return company;
+        }
+
+        public CarType getType() {
+            return type;
+        }
+    }
+}
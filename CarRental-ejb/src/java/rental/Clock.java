@@ -0,0 +1,25 @@
+package rental;
+
+import java.util.Date;
+
+/**
+ * Tells a {@link CarRentalCompany} which day it is, so that a simulation can
+ * run it on simulated days instead of the real date.
+ */
+public interface Clock {
+
+    /**
+     * The real date.
+     */
+    public static final Clock SYSTEM = new Clock() {
+        @Override
+        public int today() {
+            return Days.toEpochDay(new Date());
+        }
+    };
+
+    /**
+     * @return the current day, as a number of days since the epoch
+     */
+    public int today();
+}
@@ -0,0 +1,259 @@
+package rental;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Denormalised, read-optimised view on the availability of one company's
+ * fleet. It is built once from the entity graph and then kept up to date by
+ * applying {@link RentalEvent}s. Instances are not thread-safe.
+ *
+ * Besides the bookings of every car, it counts the concurrent bookings of
+ * every car type per day in a {@link CapacityTree}. Customers book a type,
+ * and the company assigns the concrete car at confirmation, so a type has
+ * room for a period as long as fewer of its cars are booked than it has on
+ * every day of the period.
+ */
+public class CompanyAvailability {
+
+    private final String name;
+    private final Map<String, CarType> types = new HashMap<String, CarType>();
+    private final Map<String, Map<Integer, IntervalIndex>> carsByType = new HashMap<String, Map<Integer, IntervalIndex>>();
+    private final Map<String, CapacityTree> bookingsByType = new HashMap<String, CapacityTree>();
+
+    public CompanyAvailability(String name) {
+        this.name = name;
+    }
+
+    public static CompanyAvailability of(CarRentalCompany company) {
+        CompanyAvailability out = new CompanyAvailability(company.getName());
+        for (CarType type : company.getAllTypes()) {
+            out.types.put(type.getName(), type);
+        }
+        for (Car car : company.getAllCars()) {
+            IntervalIndex index = out.addCar(car.getType(), car.getId());
+            CapacityTree bookings = out.bookingsByType.get(car.getType().getName());
+            for (Reservation res : car.getReservations()) {
+                int startDay = Days.toEpochDay(res.getStartDate());
+                int endDay = Days.toEpochDay(res.getEndDate());
+                if (index.add(startDay, endDay)) {
+                    bookings.add(startDay, endDay, 1);
+                }
+            }
+        }
+        return out;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Collection<CarType> getCarTypes() {
+        return types.values();
+    }
+
+    public int getNbOfCars() {
+        int out = 0;
+        for (Map<Integer, IntervalIndex> cars : carsByType.values()) {
+            out += cars.size();
+        }
+        return out;
+    }
+
+    /**********
+     * EVENTS *
+     **********/
+
+    public void apply(RentalEvent event) {
+        switch (event.getKind()) {
+            case CAR_ADDED:
+                addCar(event.getCarType(), event.getCarId());
+                break;
+            case RESERVATION_CONFIRMED:
+                // a backlog replayed over a fresh load may repeat a booking
+                if (addCar(event.getCarType(), event.getCarId()).add(event.getStartDay(), event.getEndDay())) {
+                    bookingsByType.get(event.getCarType().getName()).add(event.getStartDay(), event.getEndDay(), 1);
+                }
+                break;
+            case RESERVATION_CANCELLED:
+                if (addCar(event.getCarType(), event.getCarId()).remove(event.getStartDay(), event.getEndDay())) {
+                    bookingsByType.get(event.getCarType().getName()).add(event.getStartDay(), event.getEndDay(), -1);
+                }
+                break;
+            case RESERVATION_MOVED:
+                // the number of bookings of the type stays the same
+                addCar(event.getCarType(), event.getPreviousCarId()).remove(event.getStartDay(), event.getEndDay());
+                addCar(event.getCarType(), event.getCarId()).add(event.getStartDay(), event.getEndDay());
+                break;
+        }
+    }
+
+    private IntervalIndex addCar(CarType type, int carId) {
+        types.put(type.getName(), type);
+        Map<Integer, IntervalIndex> cars = carsByType.get(type.getName());
+        if (cars == null) {
+            cars = new HashMap<Integer, IntervalIndex>();
+            carsByType.put(type.getName(), cars);
+            bookingsByType.put(type.getName(), new CapacityTree());
+        }
+        IntervalIndex index = cars.get(carId);
+        if (index == null) {
+            index = new IntervalIndex();
+            cars.put(carId, index);
+        }
+        return index;
+    }
+
+    /***********
+     * QUERIES *
+     ***********/
+
+    public Set<CarType> getAvailableCarTypes(Date start, Date end) {
+        if (!start.before(end))
+            throw new IllegalArgumentException("Illegal given period");
+
+        int startDay = Days.toEpochDay(start);
+        int endDay = Days.toEpochDay(end);
+        Set<CarType> out = new HashSet<CarType>();
+        for (String type : carsByType.keySet()) {
+            if (hasCapacity(type, startDay, endDay)) {
+                out.add(types.get(type));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return whether fewer cars of the given type are booked than it has, on
+     *         every day of the given period, in O(log days)
+     */
+    public boolean hasCapacity(String carType, int startDay, int endDay) {
+        Map<Integer, IntervalIndex> cars = carsByType.get(carType);
+        return cars != null && bookingsByType.get(carType).max(startDay, endDay) < cars.size();
+    }
+
+    /**
+     * Counts the free cars of the given type for every day from {@code from}
+     * until {@code to}. Every booking in the period adds a start and an end
+     * event to a per-day difference array, and a single sweep over the days
+     * turns those into counts, in O(bookings + days).
+     */
+    public AvailabilityCalendar getAvailabilityCalendar(String carType, Date from, Date to) {
+        int firstDay = Days.toEpochDay(from);
+        int lastDay = Days.toEpochDay(to);
+        if (lastDay < firstDay)
+            throw new IllegalArgumentException("Illegal given period");
+        if (!types.containsKey(carType))
+            throw new IllegalArgumentException("<" + name + "> No cartype of name " + carType);
+
+        Map<Integer, IntervalIndex> cars = carsByType.get(carType);
+        int[] delta = new int[lastDay - firstDay + 2];
+        int fleet = 0;
+        if (cars != null) {
+            fleet = cars.size();
+            for (IntervalIndex index : cars.values()) {
+                for (Map.Entry<Integer, Integer> booking : index.overlapping(firstDay, lastDay).entrySet()) {
+                    delta[Math.max(booking.getKey(), firstDay) - firstDay]++;
+                    delta[Math.min(booking.getValue(), lastDay) - firstDay + 1]--;
+                }
+            }
+        }
+        int[] free = new int[lastDay - firstDay + 1];
+        int busy = 0;
+        for (int day = 0; day < free.length; day++) {
+            busy += delta[day];
+            free[day] = fleet - busy;
+        }
+        return new AvailabilityCalendar(name, carType, firstDay, free);
+    }
+
+    /**
+     * @return the earliest period of {@code durationDays} days starting on or
+     *         after {@code notBefore} during which a car of the given type is
+     *         free, or null if the company has no such cars
+     */
+    public ReservationConstraints findEarliestWindow(String carType, Date notBefore, int durationDays) {
+        if (durationDays <= 0)
+            throw new IllegalArgumentException("Illegal given duration " + durationDays);
+        if (!types.containsKey(carType))
+            throw new IllegalArgumentException("<" + name + "> No cartype of name " + carType);
+
+        Map<Integer, IntervalIndex> cars = carsByType.get(carType);
+        if (cars == null || cars.isEmpty()) {
+            return null;
+        }
+        int firstDay = Days.toEpochDay(notBefore);
+        int best = Integer.MAX_VALUE;
+        for (IntervalIndex index : cars.values()) {
+            best = Math.min(best, index.firstFreeStart(firstDay, durationDays));
+            if (best == firstDay) {
+                break;
+            }
+        }
+        return new ReservationConstraints(Days.toDate(best), Days.toDate(best + durationDays), carType);
+    }
+
+    /**
+     * Finds, for every car type, the days from {@code firstStart} until
+     * {@code lastStart} on which a period of {@code durationDays} days can
+     * start with a single car of that type. The free gaps between the bookings
+     * of every car mark ranges of possible start days in a difference array,
+     * so each type is handled in O(bookings + days) whatever the duration.
+     *
+     * @return for every type with at least one possible start, a flag per day
+     *         telling whether the period can start on that day
+     */
+    public Map<CarType, boolean[]> getFreeWindowStarts(int firstStart, int lastStart, int durationDays) {
+        if (durationDays <= 0)
+            throw new IllegalArgumentException("Illegal given duration " + durationDays);
+        Map<CarType, boolean[]> out = new HashMap<CarType, boolean[]>();
+        if (lastStart < firstStart) {
+            return out;
+        }
+        int days = lastStart - firstStart + 1;
+        for (Map.Entry<String, Map<Integer, IntervalIndex>> entry : carsByType.entrySet()) {
+            int[] delta = new int[days + 1];
+            for (IntervalIndex index : entry.getValue().values()) {
+                int free = firstStart;
+                for (Map.Entry<Integer, Integer> booking : index.overlapping(firstStart, lastStart + durationDays).entrySet()) {
+                    markStarts(delta, firstStart, free, Math.min(booking.getKey() - 1 - durationDays, lastStart));
+                    free = Math.max(free, booking.getValue() + 1);
+                }
+                markStarts(delta, firstStart, free, lastStart);
+            }
+            boolean[] starts = new boolean[days];
+            boolean any = false;
+            int cars = 0;
+            for (int day = 0; day < days; day++) {
+                cars += delta[day];
+                starts[day] = cars > 0;
+                any |= starts[day];
+            }
+            if (any) {
+                out.put(types.get(entry.getKey()), starts);
+            }
+        }
+        return out;
+    }
+
+    private static void markStarts(int[] delta, int firstStart, int from, int until) {
+        if (from <= until) {
+            delta[from - firstStart]++;
+            delta[until - firstStart + 1]--;
+        }
+    }
+
+    public CarType getCheapestCarType(Date start, Date end) {
+        CarType cheapestCarType = null;
+        for (CarType carType : getAvailableCarTypes(start, end)) {
+            if (cheapestCarType == null || carType.getRentalPricePerDay() < cheapestCarType.getRentalPricePerDay()) {
+                cheapestCarType = carType;
+            }
+        }
+        return cheapestCarType;
+    }
+}
@@ -0,0 +1,76 @@
+package rental;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Booked periods of a single car, keyed by start day. Both bounds are
+ * inclusive epoch days, and the periods of one car never overlap, so the
+ * booking with the greatest start before a given day also has the greatest end.
+ */
+public class IntervalIndex {
+
+    private final TreeMap<Integer, Integer> booked = new TreeMap<Integer, Integer>();
+
+    /**
+     * @return whether the given period was added; it is not if the car
+     *         already has a booking starting that day, such as this one
+     */
+    public boolean add(int startDay, int endDay) {
+        if (booked.containsKey(startDay)) {
+            return false;
+        }
+        booked.put(startDay, endDay);
+        return true;
+    }
+
+    /**
+     * @return whether the given period was booked
+     */
+    public boolean remove(int startDay, int endDay) {
+        Integer end = booked.get(startDay);
+        if (end != null && end == endDay) {
+            booked.remove(startDay);
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isFree(int startDay, int endDay) {
+        Map.Entry<Integer, Integer> before = booked.floorEntry(endDay);
+        return before == null || before.getValue() < startDay;
+    }
+
+    /**
+     * @return the booked periods that share at least one day with the given
+     *         period, as a start day to end day map
+     */
+    public SortedMap<Integer, Integer> overlapping(int startDay, int endDay) {
+        Map.Entry<Integer, Integer> before = booked.floorEntry(startDay);
+        int from = before != null && before.getValue() >= startDay ? before.getKey() : startDay;
+        return booked.subMap(from, true, endDay, true);
+    }
+
+    /**
+     * Finds the first day from {@code notBefore} on at which a period of
+     * {@code length} days is free. Instead of probing every candidate day,
+     * the search jumps past the end of the last booking that overlaps the
+     * candidate period, so it visits every booking at most once.
+     *
+     * @param length number of days between the start and the (inclusive) end day
+     */
+    public int firstFreeStart(int notBefore, int length) {
+        int start = notBefore;
+        Map.Entry<Integer, Integer> conflict = booked.floorEntry(start + length);
+        while (conflict != null && conflict.getValue() >= start) {
+            start = conflict.getValue() + 1;
+            conflict = booked.floorEntry(start + length);
+        }
+        return start;
+    }
+
+    public int size() {
+        return booked.size();
+    }
+}
@@ -0,0 +1,348 @@
+package rental;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Off-heap copy of the current reservations of one company, kept in a
+ * memory-mapped file so it survives restarts and costs no heap per
+ * reservation.
+ *
+ * The file starts with a header (magic number, format version, number of
+ * records, number of live records, whether it was closed cleanly) followed by
+ * fixed-width records: car uid, start and end epoch day, renter code, price
+ * and flags. Removed records are flagged, and compacted away once they
+ * outnumber the live ones. On opening, the records are scanned once to build
+ * a per-car index of record numbers; availability checks then only read the
+ * records of one car straight from the mapping, without creating any objects.
+ */
+public class MappedReservationStore {
+
+    private static final int MAGIC = 0x43525253;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 32;
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int MIN_REMOVED_TO_COMPACT = 1024;
+
+    private static final int SIZE = 8;
+    private static final int LIVE = 12;
+    private static final int CLEAN = 16;
+
+    private static final int CAR_ID = 0;
+    private static final int START_DAY = 4;
+    private static final int END_DAY = 8;
+    private static final int RENTER = 12;
+    private static final int PRICE = 16;
+    private static final int FLAGS = 24;
+
+    private static final int REMOVED = 1;
+
+    private final RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int size;
+    private int live;
+    private final boolean closedCleanly;
+    private CarRecords[] byCar = new CarRecords[64];
+
+    /***************
+     * CONSTRUCTOR *
+     ***************/
+
+    /**
+     * Opens the store in the given file, or creates it. The store counts as
+     * not closed cleanly until {@link #close()} is called.
+     */
+    public MappedReservationStore(File path) throws IOException {
+        boolean created = !path.exists() || path.length() == 0;
+        this.file = new RandomAccessFile(path, "rw");
+        if (created) {
+            map(INITIAL_CAPACITY);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            closedCleanly = true;
+        } else {
+            map((int) ((file.length() - HEADER_SIZE) / RECORD_SIZE));
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                file.close();
+                throw new IOException("Not a reservation store: " + path);
+            }
+            closedCleanly = buffer.getInt(CLEAN) == 1;
+            size = buffer.getInt(SIZE);
+            live = buffer.getInt(LIVE);
+            for (int record = 0; record < size; record++) {
+                if ((buffer.getInt(position(record) + FLAGS) & REMOVED) == 0) {
+                    index(buffer.getInt(position(record) + CAR_ID), record);
+                }
+            }
+        }
+        writeHeader();
+        buffer.putInt(CLEAN, 0);
+        buffer.force();
+    }
+
+    private void map(int newCapacity) throws IOException {
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) newCapacity * RECORD_SIZE);
+        capacity = newCapacity;
+    }
+
+    private void writeHeader() {
+        buffer.putInt(SIZE, size);
+        buffer.putInt(LIVE, live);
+    }
+
+    private static int position(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    private void index(int carId, int record) {
+        if (carId < 0) {
+            throw new IllegalArgumentException("Illegal car uid " + carId);
+        }
+        if (carId >= byCar.length) {
+            CarRecords[] grown = new CarRecords[Math.max(carId + 1, byCar.length * 2)];
+            System.arraycopy(byCar, 0, grown, 0, byCar.length);
+            byCar = grown;
+        }
+        if (byCar[carId] == null) {
+            byCar[carId] = new CarRecords();
+        }
+        byCar[carId].add(record);
+    }
+
+    /***********
+     * WRITING *
+     ***********/
+
+    /**
+     * Adds a booking of the given car, unless the store already has it.
+     * Bookings of one car never overlap, so the car and the period identify
+     * a booking.
+     *
+     * @return whether the booking was added
+     */
+    public synchronized boolean add(int carId, int startDay, int endDay, String renter, double price)
+            throws IOException {
+        if (find(carId, startDay, endDay) >= 0) {
+            return false;
+        }
+        if (size == capacity) {
+            map(capacity * 2);
+        }
+        int position = position(size);
+        buffer.putInt(position + CAR_ID, carId);
+        buffer.putInt(position + START_DAY, startDay);
+        buffer.putInt(position + END_DAY, endDay);
+        buffer.putInt(position + RENTER, renter == null ? 0 : renter.hashCode());
+        buffer.putDouble(position + PRICE, price);
+        buffer.putInt(position + FLAGS, 0);
+        index(carId, size);
+        size++;
+        live++;
+        writeHeader();
+        return true;
+    }
+
+    /**
+     * Removes the booking of the given car for the given period, if the store
+     * has it.
+     *
+     * @return whether the booking was removed
+     */
+    public synchronized boolean remove(int carId, int startDay, int endDay) {
+        int slot = find(carId, startDay, endDay);
+        if (slot < 0) {
+            return false;
+        }
+        int record = byCar[carId].removeAt(slot);
+        buffer.putInt(position(record) + FLAGS, REMOVED);
+        live--;
+        writeHeader();
+        compactIfSparse();
+        return true;
+    }
+
+    /**
+     * Removes every booking that ended before the given day, as they are
+     * archived out of the current reservations.
+     *
+     * @return the number of removed bookings
+     */
+    public synchronized int removeEndedBefore(int day) {
+        int removed = 0;
+        for (CarRecords records : byCar) {
+            if (records == null) {
+                continue;
+            }
+            for (int slot = records.size - 1; slot >= 0; slot--) {
+                int record = records.records[slot];
+                if (buffer.getInt(position(record) + END_DAY) < day) {
+                    records.removeAt(slot);
+                    buffer.putInt(position(record) + FLAGS, REMOVED);
+                    removed++;
+                }
+            }
+        }
+        live -= removed;
+        writeHeader();
+        if (removed > 0) {
+            compact();
+        }
+        return removed;
+    }
+
+    /**
+     * Forgets every booking, so the store can be filled again from the
+     * database.
+     */
+    public synchronized void clear() {
+        size = 0;
+        live = 0;
+        byCar = new CarRecords[64];
+        writeHeader();
+    }
+
+    private void compactIfSparse() {
+        int removed = size - live;
+        if (removed >= MIN_REMOVED_TO_COMPACT && removed > live) {
+            compact();
+        }
+    }
+
+    /**
+     * Moves the live records to the front of the file, in their order, and
+     * indexes them again.
+     */
+    private void compact() {
+        byCar = new CarRecords[byCar.length];
+        int to = 0;
+        byte[] record = new byte[RECORD_SIZE];
+        for (int from = 0; from < size; from++) {
+            if ((buffer.getInt(position(from) + FLAGS) & REMOVED) != 0) {
+                continue;
+            }
+            if (to != from) {
+                buffer.position(position(from));
+                buffer.get(record);
+                buffer.position(position(to));
+                buffer.put(record);
+            }
+            index(buffer.getInt(position(to) + CAR_ID), to);
+            to++;
+        }
+        buffer.position(0);
+        size = to;
+        writeHeader();
+    }
+
+    public synchronized void flush() {
+        buffer.force();
+    }
+
+    /**
+     * Marks the store closed cleanly and closes it.
+     */
+    public synchronized void close() throws IOException {
+        buffer.putInt(CLEAN, 1);
+        buffer.force();
+        file.close();
+    }
+
+    /***********
+     * READING *
+     ***********/
+
+    /**
+     * @return whether the given car has no booking on any day from
+     *         {@code startDay} until {@code endDay}, apart from those that
+     *         start on one of the given days
+     */
+    public synchronized boolean isFree(int carId, int startDay, int endDay, int[] ignoredStartDays) {
+        if (carId < 0 || carId >= byCar.length || byCar[carId] == null) {
+            return true;
+        }
+        CarRecords records = byCar[carId];
+        for (int i = 0; i < records.size; i++) {
+            int position = position(records.records[i]);
+            int recordStart = buffer.getInt(position + START_DAY);
+            if (buffer.getInt(position + END_DAY) < startDay || recordStart > endDay
+                    || contains(ignoredStartDays, recordStart)) {
+                continue;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean contains(int[] days, int day) {
+        if (days != null) {
+            for (int d : days) {
+                if (d == day) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the slot of the given booking in the index of its car, or -1
+     */
+    private int find(int carId, int startDay, int endDay) {
+        if (carId < 0 || carId >= byCar.length || byCar[carId] == null) {
+            return -1;
+        }
+        CarRecords records = byCar[carId];
+        for (int i = 0; i < records.size; i++) {
+            int position = position(records.records[i]);
+            if (buffer.getInt(position + START_DAY) == startDay && buffer.getInt(position + END_DAY) == endDay) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number of bookings in the store
+     */
+    public synchronized int getNbReservations() {
+        return live;
+    }
+
+    /**
+     * @return whether the store was closed cleanly the last time it was open;
+     *         if not, it may have missed changes
+     */
+    public boolean wasClosedCleanly() {
+        return closedCleanly;
+    }
+
+    /**
+     * Record numbers of the live bookings of one car.
+     */
+    private static class CarRecords {
+
+        private int[] records = new int[8];
+        private int size;
+
+        void add(int record) {
+            if (size == records.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(records, 0, grown, 0, size);
+                records = grown;
+            }
+            records[size++] = record;
+        }
+
+        int removeAt(int slot) {
+            int record = records[slot];
+            records[slot] = records[--size];
+            return record;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package rental;
+
+import java.io.Serializable;
+
+/**
+ * Domain event raised by a {@link CarRentalCompany} whenever its fleet or its
+ * bookings change. Events are published after the enclosing transaction
+ * commits and are applied to the availability read model.
+ */
+public class RentalEvent implements Serializable {
+
+    public enum Kind {
+        CAR_ADDED, RESERVATION_CONFIRMED, RESERVATION_CANCELLED, RESERVATION_MOVED
+    }
+
+    private final Kind kind;
+    private final String company;
+    private final CarType carType;
+    private final int carId;
+    private final int startDay;
+    private final int endDay;
+    // the car a moved reservation was taken from
+    private final int previousCarId;
+    private final long createdAt;
+    // the booking itself, for consumers that need more than the car and days
+    private final transient Reservation reservation;
+
+    /***************
+     * CONSTRUCTOR *
+     ***************/
+
+    private RentalEvent(Kind kind, String company, CarType carType, int carId, int startDay, int endDay,
+            Reservation reservation) {
+        this(kind, company, carType, carId, startDay, endDay, reservation, carId);
+    }
+
+    private RentalEvent(Kind kind, String company, CarType carType, int carId, int startDay, int endDay,
+            Reservation reservation, int previousCarId) {
+        this.kind = kind;
+        this.company = company;
+        this.carType = carType;
+        this.carId = carId;
+        this.startDay = startDay;
+        this.endDay = endDay;
+        this.createdAt = System.currentTimeMillis();
+        this.reservation = reservation;
+        this.previousCarId = previousCarId;
+    }
+
+    public static RentalEvent carAdded(String company, Car car) {
+        return new RentalEvent(Kind.CAR_ADDED, company, car.getType(), car.getId(), 0, 0, null);
+    }
+
+    public static RentalEvent reservationConfirmed(String company, CarType type, Reservation res) {
+        return new RentalEvent(Kind.RESERVATION_CONFIRMED, company, type, res.getCarId(),
+                Days.toEpochDay(res.getStartDate()), Days.toEpochDay(res.getEndDate()), res);
+    }
+
+    public static RentalEvent reservationCancelled(String company, CarType type, Reservation res) {
+        return new RentalEvent(Kind.RESERVATION_CANCELLED, company, type, res.getCarId(),
+                Days.toEpochDay(res.getStartDate()), Days.toEpochDay(res.getEndDate()), res);
+    }
+
+    public static RentalEvent reservationMoved(String company, CarType type, Reservation res, int previousCarId) {
+        return new RentalEvent(Kind.RESERVATION_MOVED, company, type, res.getCarId(),
+                Days.toEpochDay(res.getStartDate()), Days.toEpochDay(res.getEndDate()), res, previousCarId);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getCompany() {
+        return company;
+    }
+
+    public CarType getCarType() {
+        return carType;
+    }
+
+    public int getCarId() {
+        return carId;
+    }
+
+    public int getStartDay() {
+        return startDay;
+    }
+
+    public int getEndDay() {
+        return endDay;
+    }
+
+    public int getPreviousCarId() {
+        return previousCarId;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * @return the reservation that was confirmed or cancelled, or null for
+     *         other events and after serialization
+     */
+    public Reservation getReservation() {
+        return reservation;
+    }
+
+    /*************
+     * TO STRING *
+     *************/
+
+    @Override
+    public String toString() {
+        return String.format("%s at %s [car %d of type %s, days %d-%d]",
+                kind, company, carId, carType == null ? null : carType.getName(), startDay, endDay);
+    }
+}
@@ -0,0 +1,402 @@
+package rental;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only, memory-mapped journal of confirmed reservations that have not
+ * reached the database yet.
+ *
+ * Bookings are appended under the journal's monitor while the transaction
+ * that confirms them is still running; they keep their cars taken from then
+ * on. Before that transaction commits they are marked committed and made
+ * durable with {@link #awaitDurable(long)}: the first waiter forces the
+ * mapping to disk on behalf of everything written so far, and the waiters
+ * queued behind it usually find their writes already durable, so concurrent
+ * bookings share one fsync. When it rolls back they are discarded. Only
+ * committed entries are handed out to be flushed to the database, and they
+ * stay pending until they are marked flushed. On opening, the committed
+ * entries are read back so they can be replayed; entries whose transaction
+ * never completed are discarded.
+ *
+ * The file starts with a header (magic number, format version, next sequence
+ * number, offset of the first pending entry, end offset) followed by entries
+ * prefixed with their length and state. The end offset is only advanced once
+ * an entry is complete, so a torn write is ignored on replay.
+ */
+public class ReservationJournal {
+
+    private static final int MAGIC = 0x43524a4c;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int INITIAL_SIZE = 1 << 20;
+
+    private static final int NEXT_SEQUENCE = 8;
+    private static final int FLUSHED_OFFSET = 16;
+    private static final int WRITE_OFFSET = 20;
+
+    // the state that follows the length of every entry
+    private static final int APPENDED = 0;
+    private static final int COMMITTED = 1;
+    private static final int DISCARDED = 2;
+    private static final int PREFIX_SIZE = 8;
+
+    private final RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private long nextSequence;
+    private int writeOffset;
+
+    private final LinkedList<Entry> pending = new LinkedList<Entry>();
+    // pending entries per company and car uid, to keep their cars taken
+    private final Map<String, Map<Integer, List<Entry>>> pendingByCar = new HashMap<String, Map<Integer, List<Entry>>>();
+
+    private final Object durability = new Object();
+    // number of writes to the mapping, and how many of them are on disk
+    private long writes;
+    private long durableWrites;
+
+    /***************
+     * CONSTRUCTOR *
+     ***************/
+
+    public ReservationJournal(File path) throws IOException {
+        boolean created = !path.exists() || path.length() == 0;
+        this.file = new RandomAccessFile(path, "rw");
+        if (created) {
+            map(INITIAL_SIZE);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            nextSequence = 1;
+            writeOffset = HEADER_SIZE;
+            writeHeader(HEADER_SIZE);
+        } else {
+            map((int) file.length());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                file.close();
+                throw new IOException("Not a reservation journal: " + path);
+            }
+            nextSequence = buffer.getLong(NEXT_SEQUENCE);
+            writeOffset = buffer.getInt(WRITE_OFFSET);
+            int offset = buffer.getInt(FLUSHED_OFFSET);
+            while (offset < writeOffset) {
+                byte[] bytes = new byte[buffer.getInt(offset)];
+                int state = buffer.getInt(offset + 4);
+                if (state == COMMITTED) {
+                    ByteBuffer in = buffer.duplicate();
+                    in.position(offset + PREFIX_SIZE);
+                    in.get(bytes);
+                    Entry entry = Entry.fromBytes(bytes);
+                    entry.offset = offset;
+                    entry.committed = true;
+                    index(entry);
+                } else if (state == APPENDED) {
+                    // its transaction did not complete before the shutdown
+                    buffer.putInt(offset + 4, DISCARDED);
+                }
+                offset += PREFIX_SIZE + bytes.length;
+            }
+        }
+    }
+
+    private void map(int size) throws IOException {
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void writeHeader(int flushedOffset) {
+        buffer.putLong(NEXT_SEQUENCE, nextSequence);
+        buffer.putInt(FLUSHED_OFFSET, flushedOffset);
+        buffer.putInt(WRITE_OFFSET, writeOffset);
+    }
+
+    private void index(Entry entry) {
+        pending.add(entry);
+        Map<Integer, List<Entry>> byCar = pendingByCar.get(entry.company);
+        if (byCar == null) {
+            byCar = new HashMap<Integer, List<Entry>>();
+            pendingByCar.put(entry.company, byCar);
+        }
+        List<Entry> entries = byCar.get(entry.carId);
+        if (entries == null) {
+            entries = new ArrayList<Entry>();
+            byCar.put(entry.carId, entries);
+        }
+        entries.add(entry);
+    }
+
+    private void unindex(Entry entry) {
+        Map<Integer, List<Entry>> byCar = pendingByCar.get(entry.company);
+        List<Entry> entries = byCar.get(entry.carId);
+        entries.remove(entry);
+        if (entries.isEmpty()) {
+            byCar.remove(entry.carId);
+        }
+    }
+
+    /***********
+     * WRITING *
+     ***********/
+
+    /**
+     * Appends the given reservations as one group, on behalf of a transaction
+     * that must {@link #commit(long, long)} or {@link #discard(long, long)}
+     * them when it completes.
+     *
+     * @return the sequence number of the last appended entry
+     */
+    public synchronized long append(List<Reservation> reservations) throws IOException {
+        for (Reservation res : reservations) {
+            Entry entry = new Entry(nextSequence, res);
+            byte[] bytes = entry.toBytes();
+            while (writeOffset + PREFIX_SIZE + bytes.length > buffer.capacity()) {
+                map(buffer.capacity() * 2);
+            }
+            buffer.putInt(writeOffset, bytes.length);
+            buffer.putInt(writeOffset + 4, APPENDED);
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(writeOffset + PREFIX_SIZE);
+            slice.put(bytes);
+            entry.offset = writeOffset;
+            writeOffset += PREFIX_SIZE + bytes.length;
+            nextSequence++;
+            index(entry);
+        }
+        buffer.putLong(NEXT_SEQUENCE, nextSequence);
+        buffer.putInt(WRITE_OFFSET, writeOffset);
+        writes++;
+        return nextSequence - 1;
+    }
+
+    /**
+     * Marks the given range of entries committed, so they can be flushed and
+     * are replayed after a restart. They are not durable until
+     * {@link #awaitDurable(long)} returns for the returned write.
+     *
+     * @return the write to wait for
+     */
+    public synchronized long commit(long first, long last) {
+        for (Entry entry : pending) {
+            if (entry.sequence > last) {
+                break;
+            }
+            if (entry.sequence >= first) {
+                entry.committed = true;
+                buffer.putInt(entry.offset + 4, COMMITTED);
+            }
+        }
+        return ++writes;
+    }
+
+    /**
+     * Tombstones the given range of entries, whose transaction rolled back.
+     * They free their cars at once and are never flushed nor replayed once
+     * {@link #awaitDurable(long)} returns for the returned write.
+     *
+     * @return the write to wait for
+     */
+    public synchronized long discard(long first, long last) {
+        Iterator<Entry> it = pending.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.sequence > last) {
+                break;
+            }
+            if (entry.sequence >= first) {
+                buffer.putInt(entry.offset + 4, DISCARDED);
+                it.remove();
+                unindex(entry);
+            }
+        }
+        if (pending.isEmpty()) {
+            writeOffset = HEADER_SIZE;
+            writeHeader(HEADER_SIZE);
+        }
+        return ++writes;
+    }
+
+    /**
+     * Blocks until the given write, and every one before it, is on disk.
+     */
+    public void awaitDurable(long write) {
+        synchronized (durability) {
+            if (durableWrites >= write) {
+                return;
+            }
+            MappedByteBuffer mapping;
+            long target;
+            synchronized (this) {
+                mapping = buffer;
+                target = writes;
+            }
+            mapping.force();
+            durableWrites = target;
+        }
+    }
+
+    /**
+     * @return up to the given number of pending committed entries, oldest
+     *         first, stopping at the first entry whose transaction is still
+     *         running
+     */
+    public synchronized List<Entry> getPending(int max) {
+        List<Entry> out = new ArrayList<Entry>(Math.min(max, pending.size()));
+        for (Entry entry : pending) {
+            if (out.size() == max || !entry.committed) {
+                break;
+            }
+            out.add(entry);
+        }
+        return out;
+    }
+
+    /**
+     * Forgets the pending entries up to the given sequence number, which have
+     * been committed to the database. Once nothing is pending, the journal
+     * starts over at the beginning of the file.
+     */
+    public synchronized void markFlushed(long sequence) {
+        Iterator<Entry> it = pending.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.sequence > sequence) {
+                break;
+            }
+            it.remove();
+            unindex(entry);
+        }
+        if (pending.isEmpty()) {
+            writeOffset = HEADER_SIZE;
+            writeHeader(HEADER_SIZE);
+        } else {
+            int offset = buffer.getInt(FLUSHED_OFFSET);
+            while (offset < writeOffset && sequenceAt(offset) <= sequence) {
+                offset += PREFIX_SIZE + buffer.getInt(offset);
+            }
+            writeHeader(offset);
+        }
+    }
+
+    private long sequenceAt(int offset) {
+        return buffer.getLong(offset + PREFIX_SIZE);
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            buffer.force();
+            file.close();
+        }
+    }
+
+    /***********
+     * READING *
+     ***********/
+
+    /**
+     * @return whether no pending entry books the given car of the given
+     *         company on any day of the given period
+     */
+    public synchronized boolean isFree(String company, int carId, int startDay, int endDay) {
+        Map<Integer, List<Entry>> byCar = pendingByCar.get(company);
+        List<Entry> entries = byCar == null ? null : byCar.get(carId);
+        if (entries == null) {
+            return true;
+        }
+        for (Entry entry : entries) {
+            if (entry.startDay <= endDay && entry.endDay >= startDay) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized int getNbPending() {
+        return pending.size();
+    }
+
+    /**
+     * A reservation in the journal.
+     */
+    public static class Entry {
+
+        private final long sequence;
+        private final String company;
+        private final String carType;
+        private final String renter;
+        private final int carId;
+        private final int startDay;
+        private final int endDay;
+        private final double price;
+        // position in the file, and whether its transaction committed
+        private int offset;
+        private boolean committed;
+
+        private Entry(long sequence, String company, String carType, String renter,
+                int carId, int startDay, int endDay, double price) {
+            this.sequence = sequence;
+            this.company = company;
+            this.carType = carType;
+            this.renter = renter;
+            this.carId = carId;
+            this.startDay = startDay;
+            this.endDay = endDay;
+            this.price = price;
+        }
+
+        Entry(long sequence, Reservation res) {
+            this(sequence, res.getRentalCompany(), res.getCarType(), res.getCarRenter(), res.getCarId(),
+                    Days.toEpochDay(res.getStartDate()), Days.toEpochDay(res.getEndDate()), res.getRentalPrice());
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getCompany() {
+            return company;
+        }
+
+        public Reservation toReservation() {
+            Quote quote = new Quote(renter, Days.toDate(startDay), Days.toDate(endDay), company, carType, price);
+            return new Reservation(quote, carId);
+        }
+
+        byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(sequence);
+            out.writeUTF(company);
+            out.writeUTF(carType);
+            out.writeUTF(renter);
+            out.writeInt(carId);
+            out.writeInt(startDay);
+            out.writeInt(endDay);
+            out.writeDouble(price);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        static Entry fromBytes(byte[] bytes) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            return new Entry(in.readLong(), in.readUTF(), in.readUTF(), in.readUTF(),
+                    in.readInt(), in.readInt(), in.readInt(), in.readDouble());
+        }
+
+        @Override
+        public String toString() {
+            return "#" + sequence + " " + company + " car " + carId + " days " + startDay + "-" + endDay;
+        }
+    }
+}
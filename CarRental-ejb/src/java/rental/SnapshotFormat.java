@@ -0,0 +1,327 @@
+package rental;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary snapshot of the rental state, written and read as a stream.
+ *
+ * A snapshot starts with a header (magic number, format version, kind, the
+ * change feed cursor it starts from and the one it runs up to) and all car
+ * types. A full snapshot then holds one length-prefixed section per company,
+ * with its pricing strategy, cars and their current and archived
+ * reservations, so sections can be restored independently and in parallel.
+ * Pricing strategies are written field by field, tagged with their kind; a
+ * snapshot never holds serialized objects, so reading one cannot instantiate
+ * arbitrary classes.
+ * An incremental snapshot holds no companies but the reservation changes
+ * between its two cursors instead. Dates are stored as epoch days.
+ */
+public class SnapshotFormat {
+
+    private static final int MAGIC = 0x4352534e;
+    private static final int VERSION = 2;
+
+    public static final byte FULL = 0;
+    public static final byte INCREMENTAL = 1;
+
+    private static final byte DAILY_RATE_PRICING = 0;
+    private static final byte RATE_TABLE_PRICING = 1;
+
+    private SnapshotFormat() {
+    }
+
+    /**********
+     * HEADER *
+     **********/
+
+    public static void writeHeader(DataOutput out, byte kind, long fromCursor, long toCursor) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeByte(kind);
+        out.writeLong(fromCursor);
+        out.writeLong(toCursor);
+    }
+
+    public static Header readHeader(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a rental snapshot");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        return new Header(in.readByte(), in.readLong(), in.readLong());
+    }
+
+    public static class Header {
+
+        private final byte kind;
+        private final long fromCursor;
+        private final long toCursor;
+
+        private Header(byte kind, long fromCursor, long toCursor) {
+            this.kind = kind;
+            this.fromCursor = fromCursor;
+            this.toCursor = toCursor;
+        }
+
+        public boolean isIncremental() {
+            return kind == INCREMENTAL;
+        }
+
+        public long getFromCursor() {
+            return fromCursor;
+        }
+
+        public long getToCursor() {
+            return toCursor;
+        }
+    }
+
+    /*************
+     * CAR TYPES *
+     *************/
+
+    public static void writeTypes(DataOutput out, Collection<CarType> types) throws IOException {
+        out.writeInt(types.size());
+        for (CarType type : types) {
+            out.writeUTF(type.getName());
+            out.writeInt(type.getNbOfSeats());
+            out.writeFloat(type.getTrunkSpace());
+            out.writeDouble(type.getRentalPricePerDay());
+            out.writeBoolean(type.isSmokingAllowed());
+        }
+    }
+
+    public static List<CarType> readTypes(DataInput in) throws IOException {
+        int size = in.readInt();
+        List<CarType> out = new ArrayList<CarType>(size);
+        for (int i = 0; i < size; i++) {
+            out.add(new CarType(in.readUTF(), in.readInt(), in.readFloat(), in.readDouble(), in.readBoolean()));
+        }
+        return out;
+    }
+
+    /*************
+     * COMPANIES *
+     *************/
+
+    public static void writeCompany(DataOutput out, CarRentalCompany company) throws IOException {
+        byte[] section = encodeCompany(company);
+        out.writeInt(section.length);
+        out.write(section);
+    }
+
+    public static void writeEndOfCompanies(DataOutput out) throws IOException {
+        out.writeInt(0);
+    }
+
+    /**
+     * @return the next company section, or null after the last one
+     */
+    public static byte[] readCompanySection(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length == 0) {
+            return null;
+        }
+        byte[] section = new byte[length];
+        in.readFully(section);
+        return section;
+    }
+
+    private static byte[] encodeCompany(CarRentalCompany company) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(company.getName());
+
+        writePricing(out, company.getPricingStrategy());
+
+        out.writeInt(company.getAllTypes().size());
+        for (CarType type : company.getAllTypes()) {
+            out.writeUTF(type.getName());
+        }
+        out.writeInt(company.getAllCars().size());
+        for (Car car : company.getAllCars()) {
+            out.writeInt(car.getId());
+            out.writeUTF(car.getType().getName());
+            out.writeInt(car.getReservations().size());
+            for (Reservation res : car.getReservations()) {
+                writeReservation(out, res);
+            }
+            out.writeInt(car.getArchivedReservations().size());
+            for (Reservation res : car.getArchivedReservations()) {
+                writeReservation(out, res);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Builds a new company, with its cars and reservations, from a section.
+     *
+     * @param types the car types by name, which must already exist
+     */
+    public static CarRentalCompany decodeCompany(byte[] section, Map<String, CarType> types) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(section));
+        String name = in.readUTF();
+
+        PricingStrategy strategy = readPricing(in);
+
+        List<CarType> companyTypes = new ArrayList<CarType>();
+        for (int i = in.readInt(); i > 0; i--) {
+            companyTypes.add(getType(types, in.readUTF()));
+        }
+        List<Car> cars = new ArrayList<Car>();
+        int nbCars = in.readInt();
+        for (int i = 0; i < nbCars; i++) {
+            int uid = in.readInt();
+            CarType type = getType(types, in.readUTF());
+            Car car = new Car(uid, type);
+            for (int j = in.readInt(); j > 0; j--) {
+                car.addReservation(readReservation(in, name, type.getName(), uid));
+            }
+            for (int j = in.readInt(); j > 0; j--) {
+                car.addArchivedReservation(readReservation(in, name, type.getName(), uid));
+            }
+            cars.add(car);
+        }
+
+        CarRentalCompany company = new CarRentalCompany(name, cars);
+        for (CarType type : companyTypes) {
+            company.addCarType(type);
+        }
+        company.setPricingStrategy(strategy);
+        return company;
+    }
+
+    private static void writePricing(DataOutput out, PricingStrategy strategy) throws IOException {
+        if (strategy instanceof RateTablePricing) {
+            out.writeByte(RATE_TABLE_PRICING);
+            ((RateTablePricing) strategy).writeTo(out);
+        } else if (strategy instanceof DailyRatePricing) {
+            out.writeByte(DAILY_RATE_PRICING);
+        } else {
+            throw new IOException("Pricing strategy " + strategy.getClass().getName() + " cannot be snapshotted");
+        }
+    }
+
+    private static PricingStrategy readPricing(DataInput in) throws IOException {
+        byte kind = in.readByte();
+        switch (kind) {
+            case DAILY_RATE_PRICING:
+                return new DailyRatePricing();
+            case RATE_TABLE_PRICING:
+                return RateTablePricing.readFrom(in);
+            default:
+                throw new IOException("Unknown pricing strategy " + kind);
+        }
+    }
+
+    private static CarType getType(Map<String, CarType> types, String name) throws IOException {
+        CarType type = types.get(name);
+        if (type == null) {
+            throw new IOException("Unknown car type " + name);
+        }
+        return type;
+    }
+
+    private static void writeReservation(DataOutput out, Reservation res) throws IOException {
+        out.writeUTF(res.getCarRenter());
+        out.writeInt(Days.toEpochDay(res.getStartDate()));
+        out.writeInt(Days.toEpochDay(res.getEndDate()));
+        out.writeDouble(res.getRentalPrice());
+    }
+
+    private static Reservation readReservation(DataInput in, String company, String carType, int carId)
+            throws IOException {
+        Quote quote = new Quote(in.readUTF(), Days.toDate(in.readInt()), Days.toDate(in.readInt()),
+                company, carType, in.readDouble());
+        return new Reservation(quote, carId);
+    }
+
+    /***********
+     * CHANGES *
+     ***********/
+
+    public static void writeChange(DataOutput out, ReservationChange change) throws IOException {
+        out.writeBoolean(true);
+        out.writeUTF(change.getType().name());
+        out.writeUTF(change.getRentalCompany());
+        out.writeUTF(change.getCarType());
+        out.writeInt(change.getCarId());
+        out.writeInt(change.getPreviousCarId());
+        out.writeUTF(change.getCarRenter());
+        out.writeInt(Days.toEpochDay(change.getStartDate()));
+        out.writeInt(Days.toEpochDay(change.getEndDate()));
+        out.writeDouble(change.getRentalPrice());
+    }
+
+    public static void writeEndOfChanges(DataOutput out) throws IOException {
+        out.writeBoolean(false);
+    }
+
+    /**
+     * @return the next change, or null after the last one
+     */
+    public static Change readChange(DataInput in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        ReservationChange.Type type;
+        try {
+            type = ReservationChange.Type.valueOf(in.readUTF());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown reservation change", e);
+        }
+        String company = in.readUTF();
+        String carType = in.readUTF();
+        int carId = in.readInt();
+        int previousCarId = in.readInt();
+        Quote quote = new Quote(in.readUTF(), Days.toDate(in.readInt()), Days.toDate(in.readInt()),
+                company, carType, in.readDouble());
+        return new Change(type, new Reservation(quote, carId), previousCarId);
+    }
+
+    /**
+     * A reservation that was created, cancelled or moved to another car, read
+     * from an incremental snapshot.
+     */
+    public static class Change {
+
+        private final ReservationChange.Type type;
+        private final Reservation reservation;
+        private final int previousCarId;
+
+        private Change(ReservationChange.Type type, Reservation reservation, int previousCarId) {
+            this.type = type;
+            this.reservation = reservation;
+            this.previousCarId = previousCarId;
+        }
+
+        public ReservationChange.Type getType() {
+            return type;
+        }
+
+        public Reservation getReservation() {
+            return reservation;
+        }
+
+        /**
+         * @return the car a moved reservation was taken from
+         */
+        public int getPreviousCarId() {
+            return previousCarId;
+        }
+    }
+}
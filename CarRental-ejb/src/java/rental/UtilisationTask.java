@@ -0,0 +1,135 @@
+package rental;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes fleet utilisation per car type by splitting the cars of a company
+ * across a fork-join pool. Every leaf tallies booked car-days, revenue and a
+ * per-day difference array of bookings for its slice of cars; the tallies are
+ * merged by addition, and the peak concurrency is derived from the merged
+ * differences at the end.
+ *
+ * The reservations of the given cars must already be loaded, since the work
+ * runs outside the caller's persistence context. Small fleets are tallied on
+ * the calling thread; larger ones are split across the given pool, which the
+ * caller owns.
+ */
+public class UtilisationTask extends RecursiveTask<Map<String, UtilisationTask.Tally>> {
+
+    // below this number of cars a slice is tallied sequentially
+    private static final int THRESHOLD = 256;
+
+    private final List<Car> cars;
+    private final int firstDay;
+    private final int lastDay;
+
+    private UtilisationTask(List<Car> cars, int firstDay, int lastDay) {
+        this.cars = cars;
+        this.firstDay = firstDay;
+        this.lastDay = lastDay;
+    }
+
+    public static UtilisationReport report(String company, List<Car> cars, Date start, Date end, ForkJoinPool pool) {
+        int firstDay = Days.toEpochDay(start);
+        int lastDay = Days.toEpochDay(end);
+        if (lastDay < firstDay)
+            throw new IllegalArgumentException("Illegal given period");
+
+        UtilisationTask task = new UtilisationTask(cars, firstDay, lastDay);
+        Map<String, Tally> tallies;
+        if (cars.size() <= THRESHOLD) {
+            tallies = task.tally();
+        } else {
+            tallies = pool.invoke(task);
+        }
+        Map<String, CarTypeUtilisation> out = new TreeMap<String, CarTypeUtilisation>();
+        int days = lastDay - firstDay + 1;
+        for (Map.Entry<String, Tally> entry : tallies.entrySet()) {
+            Tally tally = entry.getValue();
+            int concurrent = 0;
+            int peak = 0;
+            for (int day = 0; day < days; day++) {
+                concurrent += tally.delta[day];
+                peak = Math.max(peak, concurrent);
+            }
+            out.put(entry.getKey(), new CarTypeUtilisation(entry.getKey(), tally.cars, tally.bookedCarDays,
+                    (long) tally.cars * days, tally.revenue, peak));
+        }
+        return new UtilisationReport(company, start, end, out);
+    }
+
+    @Override
+    protected Map<String, Tally> compute() {
+        if (cars.size() <= THRESHOLD) {
+            return tally();
+        }
+        int middle = cars.size() / 2;
+        UtilisationTask left = new UtilisationTask(cars.subList(0, middle), firstDay, lastDay);
+        UtilisationTask right = new UtilisationTask(cars.subList(middle, cars.size()), firstDay, lastDay);
+        left.fork();
+        Map<String, Tally> out = right.compute();
+        for (Map.Entry<String, Tally> entry : left.join().entrySet()) {
+            Tally tally = out.get(entry.getKey());
+            if (tally == null) {
+                out.put(entry.getKey(), entry.getValue());
+            } else {
+                tally.add(entry.getValue());
+            }
+        }
+        return out;
+    }
+
+    private Map<String, Tally> tally() {
+        Map<String, Tally> out = new HashMap<String, Tally>();
+        for (Car car : cars) {
+            Tally tally = out.get(car.getType().getName());
+            if (tally == null) {
+                tally = new Tally(lastDay - firstDay + 2);
+                out.put(car.getType().getName(), tally);
+            }
+            tally.cars++;
+            for (Reservation r : car.getReservationHistory()) {
+                int startDay = Days.toEpochDay(r.getStartDate());
+                int endDay = Days.toEpochDay(r.getEndDate());
+                if (startDay >= firstDay && startDay <= lastDay) {
+                    tally.revenue += r.getRentalPrice();
+                }
+                int from = Math.max(startDay, firstDay);
+                int until = Math.min(endDay, lastDay);
+                if (from <= until) {
+                    tally.bookedCarDays += until - from + 1;
+                    tally.delta[from - firstDay]++;
+                    tally.delta[until - firstDay + 1]--;
+                }
+            }
+        }
+        return out;
+    }
+
+    static class Tally {
+
+        private int cars;
+        private long bookedCarDays;
+        private double revenue;
+        private final int[] delta;
+
+        Tally(int days) {
+            this.delta = new int[days];
+        }
+
+        void add(Tally other) {
+            cars += other.cars;
+            bookedCarDays += other.bookedCarDays;
+            revenue += other.revenue;
+            for (int i = 0; i < delta.length; i++) {
+                delta[i] += other.delta[i];
+            }
+        }
+    }
+}
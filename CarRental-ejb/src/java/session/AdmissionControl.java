@@ -0,0 +1,186 @@
+package session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import static javax.ejb.ConcurrencyManagementType.BEAN;
+import javax.ejb.Singleton;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import rental.AdmissionStatistics;
+import rental.ReservationException;
+
+/**
+ * Per-company bulkheads for the booking path. Every company may have a
+ * bounded number of requests in flight and a bounded number waiting for a
+ * slot; anything beyond that is turned down at once with a retryable
+ * {@link ReservationException}, so one busy company cannot use up the
+ * container and connection pools that all companies share. A slot is given
+ * back when the transaction of the request that took it completes.
+ */
+@Singleton
+@ConcurrencyManagement(BEAN)
+public class AdmissionControl {
+
+    private static final Logger logger = Logger.getLogger(AdmissionControl.class.getName());
+
+    private static final int MAX_CONCURRENT = Integer.getInteger("rental.admission.maxConcurrent", 8);
+    private static final int MAX_QUEUED = Integer.getInteger("rental.admission.maxQueued", 16);
+    private static final long MAX_WAIT_MILLIS = Long.getLong("rental.admission.maxWaitMillis", 1000L);
+
+    @Resource
+    private TransactionSynchronizationRegistry transactions;
+
+    private final ConcurrentMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+
+    /**
+     * Waits for a slot for the given company. The slot is held until the
+     * current transaction completes, so the next request cannot see the
+     * company before this one has committed or rolled back.
+     *
+     * @throws ReservationException if the company is overloaded; the exception is retryable
+     */
+    public void enter(String company) throws ReservationException {
+        enterAll(Collections.singleton(company));
+    }
+
+    /**
+     * Waits for a slot for every given company, in a fixed order so that
+     * concurrent callers cannot deadlock. Either all slots are taken or none.
+     * The slots are held until the current transaction completes.
+     */
+    public void enterAll(Collection<String> companies) throws ReservationException {
+        if (companies.contains(null)) {
+            throw new ReservationException("No car rental company given");
+        }
+        List<String> entered = new ArrayList<String>();
+        try {
+            for (String company : new TreeSet<String>(companies)) {
+                getBulkhead(company).enter();
+                entered.add(company);
+            }
+        } catch (ReservationException e) {
+            exitAll(entered);
+            throw e;
+        }
+        exitOnCompletion(entered);
+    }
+
+    private void exitOnCompletion(final List<String> companies) {
+        try {
+            transactions.registerInterposedSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() {
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    exitAll(companies);
+                }
+            });
+        } catch (IllegalStateException e) {
+            exitAll(companies);
+            throw e;
+        }
+    }
+
+    private void exitAll(List<String> companies) {
+        for (String company : companies) {
+            getBulkhead(company).exit();
+        }
+    }
+
+    public List<AdmissionStatistics> getStatistics() {
+        List<AdmissionStatistics> out = new ArrayList<AdmissionStatistics>();
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            out.add(bulkhead.getStatistics());
+        }
+        return out;
+    }
+
+    private Bulkhead getBulkhead(String company) {
+        Bulkhead bulkhead = bulkheads.get(company);
+        if (bulkhead == null) {
+            bulkheads.putIfAbsent(company, new Bulkhead(company));
+            bulkhead = bulkheads.get(company);
+        }
+        return bulkhead;
+    }
+
+    private static class Bulkhead {
+
+        private final String company;
+        private final Semaphore slots = new Semaphore(MAX_CONCURRENT, true);
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong queueNanos = new AtomicLong();
+        private final AtomicLong maxQueueNanos = new AtomicLong();
+
+        Bulkhead(String company) {
+            this.company = company;
+        }
+
+        void enter() throws ReservationException {
+            if (slots.tryAcquire()) {
+                admitted.incrementAndGet();
+                return;
+            }
+            if (queued.incrementAndGet() > MAX_QUEUED) {
+                queued.decrementAndGet();
+                throw reject("too many requests waiting");
+            }
+            long start = System.nanoTime();
+            try {
+                if (!slots.tryAcquire(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    throw reject("no slot within " + MAX_WAIT_MILLIS + " ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw reject("interrupted while waiting");
+            } finally {
+                queued.decrementAndGet();
+                record(System.nanoTime() - start);
+            }
+            admitted.incrementAndGet();
+        }
+
+        void exit() {
+            slots.release();
+        }
+
+        private ReservationException reject(String reason) {
+            rejected.incrementAndGet();
+            logger.log(Level.WARNING, "<{0}> Overloaded, request rejected: {1}", new Object[]{company, reason});
+            return new ReservationException("<" + company + "> Too busy to handle the request ("
+                    + reason + "), please retry later.", true);
+        }
+
+        private void record(long nanos) {
+            queueNanos.addAndGet(nanos);
+            long max = maxQueueNanos.get();
+            while (nanos > max && !maxQueueNanos.compareAndSet(max, nanos)) {
+                max = maxQueueNanos.get();
+            }
+        }
+
+        AdmissionStatistics getStatistics() {
+            long total = admitted.get() + rejected.get();
+            return new AdmissionStatistics(company, admitted.get(), rejected.get(),
+                    MAX_CONCURRENT - slots.availablePermits(), queued.get(),
+                    total == 0 ? 0 : queueNanos.get() / 1e6 / total, maxQueueNanos.get() / 1e6);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Resource;
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
+import javax.ejb.ConcurrencyManagement;
+import static javax.ejb.ConcurrencyManagementType.BEAN;
+import javax.ejb.EJB;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import rental.AvailabilityCalendar;
+import rental.CapacityCheck;
+import rental.CarRentalCompany;
+import rental.CarType;
+import rental.CarTypeIndex;
+import rental.CompanyAvailability;
+import rental.Days;
+import rental.RentalEvent;
+import rental.ReservationConstraints;
+
+/**
+ * Availability read model. Booking writes go through the entity graph as
+ * before; the events they raise are queued when their transaction commits
+ * and applied asynchronously. Searches are answered from the projection and
+ * never lag more than {@code rental.projection.maxStalenessMillis} behind
+ * the committed state: a read that finds older pending events applies them
+ * first.
+ */
+@Singleton
+@ConcurrencyManagement(BEAN)
+public class AvailabilityProjection {
+
+    private static final Logger logger = Logger.getLogger(AvailabilityProjection.class.getName());
+
+    private static final long MAX_STALENESS_MILLIS = Long.getLong("rental.projection.maxStalenessMillis", 500L);
+
+    @Resource
+    private SessionContext context;
+
+    @Resource
+    private TransactionSynchronizationRegistry transactions;
+
+    @PersistenceContext EntityManager em;
+
+    @EJB
+    private ReservationStores stores;
+
+    private final Map<String, CompanyAvailability> companies = new ConcurrentHashMap<String, CompanyAvailability>();
+    // events that arrive for a company while it is being loaded, applied once it is in place
+    private final Map<String, List<RentalEvent>> backlogs = new HashMap<String, List<RentalEvent>>();
+    // the types of the companies in place, by their attributes
+    private final CarTypeIndex types = new CarTypeIndex();
+    private final Queue<RentalEvent> pending = new ConcurrentLinkedQueue<RentalEvent>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /***********
+     * WRITING *
+     ***********/
+
+    /**
+     * Queues the given events as soon as the current transaction commits, and
+     * hands them to the reservation stores right away. Events of a rolled back
+     * transaction are discarded.
+     */
+    public void publishOnCommit(final List<RentalEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        transactions.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    stores.apply(events);
+                    pending.addAll(events);
+                    context.getBusinessObject(AvailabilityProjection.class).applyPending();
+                }
+            }
+        });
+    }
+
+    @Asynchronous
+    public void applyPending() {
+        lock.writeLock().lock();
+        try {
+            RentalEvent event;
+            while ((event = pending.poll()) != null) {
+                CompanyAvailability company = companies.get(event.getCompany());
+                // companies that were never read are built from the database on first use
+                if (company != null) {
+                    company.apply(event);
+                    if (event.getKind() == RentalEvent.Kind.CAR_ADDED) {
+                        types.add(event.getCompany(), event.getCarType());
+                    }
+                } else if (backlogs.containsKey(event.getCompany())) {
+                    backlogs.get(event.getCompany()).add(event);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /***********
+     * READING *
+     ***********/
+
+    public Set<CarType> getAvailableCarTypes(String company, Date start, Date end) {
+        CompanyAvailability availability = getCompany(company);
+        lock.readLock().lock();
+        try {
+            return availability.getAvailableCarTypes(start, end);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public CarType getCheapestCarType(String company, Date start, Date end) {
+        CompanyAvailability availability = getCompany(company);
+        lock.readLock().lock();
+        try {
+            return availability.getCheapestCarType(start, end);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public AvailabilityCalendar getAvailabilityCalendar(String company, String carType, Date from, Date to) {
+        CompanyAvailability availability = getCompany(company);
+        lock.readLock().lock();
+        try {
+            return availability.getAvailabilityCalendar(carType, from, to);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public ReservationConstraints findEarliestWindow(String company, String carType, Date notBefore, int durationDays) {
+        CompanyAvailability availability = getCompany(company);
+        lock.readLock().lock();
+        try {
+            return availability.findEarliestWindow(carType, notBefore, durationDays);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Map<CarType, boolean[]> getFreeWindowStarts(String company, int firstStart, int lastStart, int durationDays) {
+        CompanyAvailability availability = getCompany(company);
+        lock.readLock().lock();
+        try {
+            return availability.getFreeWindowStarts(firstStart, lastStart, durationDays);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the types, with their company, that satisfy the given
+     *         constraints and have a car free for their period, among the
+     *         given companies
+     */
+    public List<CarTypeIndex.Entry> findAvailableCarTypes(Collection<String> companies, ReservationConstraints constraints) {
+        if (!constraints.getStartDate().before(constraints.getEndDate()))
+            throw new IllegalArgumentException("Illegal given period");
+        for (String company : companies) {
+            // puts the company in place
+            getCompany(company);
+        }
+        int startDay = Days.toEpochDay(constraints.getStartDate());
+        int endDay = Days.toEpochDay(constraints.getEndDate());
+        List<CarTypeIndex.Entry> out = new ArrayList<CarTypeIndex.Entry>();
+        lock.readLock().lock();
+        try {
+            for (CarTypeIndex.Entry entry : types.find(constraints)) {
+                if (companies.contains(entry.getCompany())
+                        && this.companies.get(entry.getCompany()).hasCapacity(entry.getType().getName(), startDay, endDay)) {
+                    out.add(entry);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return out;
+    }
+
+    /**
+     * @return whether the given car type of the given company has room for
+     *         the given period, as far as the committed bookings go
+     */
+    public boolean hasCapacity(String company, String carType, int startDay, int endDay) {
+        CompanyAvailability availability = getCompany(company);
+        lock.readLock().lock();
+        try {
+            return availability.hasCapacity(carType, startDay, endDay);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lets the given company check the capacity of its car types against the
+     * projection instead of its own reservations.
+     *
+     * @return the same company, for chaining
+     */
+    public CarRentalCompany attach(CarRentalCompany company) {
+        if (company != null && !company.hasCapacityCheck()) {
+            final AvailabilityProjection projection = context.getBusinessObject(AvailabilityProjection.class);
+            company.attachCapacityCheck(new CapacityCheck() {
+                @Override
+                public boolean hasCapacity(String company, String carType, int startDay, int endDay) {
+                    return projection.hasCapacity(company, carType, startDay, endDay);
+                }
+            });
+        }
+        return company;
+    }
+
+    private CompanyAvailability getCompany(String name) {
+        RentalEvent oldest = pending.peek();
+        if (oldest != null && System.currentTimeMillis() - oldest.getCreatedAt() > MAX_STALENESS_MILLIS) {
+            applyPending();
+        }
+        CompanyAvailability availability = companies.get(name);
+        return availability != null ? availability : load(name);
+    }
+
+    /***********
+     * LOADING *
+     ***********/
+
+    /**
+     * Loads the fleet and current reservations of the given company into the
+     * projection, unless they are there already. Several companies can be
+     * loaded in parallel.
+     *
+     * @return the number of cars loaded
+     */
+    @Asynchronous
+    public Future<Integer> preload(String company) {
+        CompanyAvailability availability = companies.get(company);
+        if (availability == null) {
+            availability = load(company);
+        }
+        return new AsyncResult<Integer>(availability.getNbOfCars());
+    }
+
+    private CompanyAvailability load(String name) {
+        lock.writeLock().lock();
+        try {
+            if (!backlogs.containsKey(name)) {
+                backlogs.put(name, new ArrayList<RentalEvent>());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        logger.log(Level.INFO, "<{0}> Building availability projection", name);
+        CarRentalCompany company = em.find(CarRentalCompany.class, name);
+        if (company == null) {
+            throw new IllegalArgumentException("<" + name + "> No such car rental company");
+        }
+        CompanyAvailability built = CompanyAvailability.of(company);
+
+        lock.writeLock().lock();
+        try {
+            CompanyAvailability availability = companies.get(name);
+            if (availability == null) {
+                List<RentalEvent> backlog = backlogs.remove(name);
+                if (backlog != null) {
+                    for (RentalEvent event : backlog) {
+                        built.apply(event);
+                    }
+                }
+                availability = built;
+                companies.put(name, availability);
+                for (CarType type : availability.getCarTypes()) {
+                    types.add(name, type);
+                }
+            }
+            return availability;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
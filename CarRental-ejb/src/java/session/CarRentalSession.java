@@ -1,30 +1,66 @@
 package session;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import javax.annotation.Resource;
+import javax.ejb.EJB;
 import javax.ejb.EJBContext;
 import javax.ejb.Stateful;
+import javax.interceptor.Interceptors;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import rental.AvailabilityCalendar;
 import rental.CarRentalCompany;
 import rental.CarType;
+import rental.CarTypeIndex;
+import rental.Days;
+import rental.PricingStrategy;
 import rental.Quote;
+import rental.QuoteRequest;
+import rental.QuoteResult;
+import rental.RentalEvent;
 import rental.Reservation;
 import rental.ReservationConstraints;
 import rental.ReservationException;
 
 @Stateful
-public class CarRentalSession implements CarRentalSessionRemote {
+@Interceptors(RequestTracing.class)
+public class CarRentalSession implements CarRentalSessionRemote, CarRentalSessionLocal {
 
     @Resource
     private EJBContext context;
     
     @PersistenceContext EntityManager em;
 
+    @EJB
+    private AvailabilityProjection availability;
+
+    @EJB
+    private AdmissionControl admission;
+
+    @EJB
+    private JournalWriter journal;
+
+    @EJB
+    private ReservationStores stores;
+
+    @EJB
+    private ChangeFeed changes;
+
+    @EJB
+    private Waitlist waitlist;
+
     private String renter;
     private List<Quote> quotes = new LinkedList<Quote>();
 
@@ -38,10 +74,11 @@ public class CarRentalSession implements CarRentalSessionRemote {
     }
     
     @Override
+    @QueryBudget(statements = 1)
     public List<CarType> getAvailableCarTypes(Date start, Date end) {
         List<CarType> availableCarTypes = new LinkedList<CarType>();
         for(String crc : getAllRentalCompanies()) {
-            for(CarType ct : em.find(CarRentalCompany.class, crc).getAvailableCarTypes(start, end)) {
+            for(CarType ct : availability.getAvailableCarTypes(crc, start, end)) {
                 if(!availableCarTypes.contains(ct))
                     availableCarTypes.add(ct);
             }
@@ -50,9 +87,101 @@ public class CarRentalSession implements CarRentalSessionRemote {
     }
 
     @Override
+    public AvailabilityCalendar getAvailabilityCalendar(String company, String carType, Date from, Date to) {
+        return availability.getAvailabilityCalendar(company, carType, from, to);
+    }
+
+    @Override
+    public ReservationConstraints findEarliestWindow(String company, String carType, Date notBefore, int durationDays) {
+        return availability.findEarliestWindow(company, carType, notBefore, durationDays);
+    }
+
+    @Override
+    public List<Quote> findCheapestWindows(Date earliestStart, Date latestEnd, int durationDays, int maxResults) {
+        if (maxResults <= 0)
+            throw new IllegalArgumentException("Illegal given number of results " + maxResults);
+        int firstStart = Days.toEpochDay(earliestStart);
+        int lastStart = Days.toEpochDay(latestEnd) - durationDays;
+        // the most expensive of the best quotes found so far on top
+        PriorityQueue<Quote> best = new PriorityQueue<Quote>(Math.max(1, maxResults), new Comparator<Quote>() {
+            @Override
+            public int compare(Quote a, Quote b) {
+                int byPrice = Double.compare(b.getRentalPrice(), a.getRentalPrice());
+                return byPrice != 0 ? byPrice : b.getStartDate().compareTo(a.getStartDate());
+            }
+        });
+        for (String name : getAllRentalCompanies()) {
+            Map<CarType, boolean[]> starts = availability.getFreeWindowStarts(name, firstStart, lastStart, durationDays);
+            if (starts.isEmpty()) {
+                continue;
+            }
+            PricingStrategy pricing = em.find(CarRentalCompany.class, name).getPricingStrategy();
+            for (Map.Entry<CarType, boolean[]> entry : starts.entrySet()) {
+                boolean[] free = entry.getValue();
+                for (int day = 0; day < free.length; day++) {
+                    if (!free[day]) {
+                        continue;
+                    }
+                    Date start = Days.toDate(firstStart + day);
+                    Date end = Days.toDate(firstStart + day + durationDays);
+                    double price = pricing.getRentalPrice(entry.getKey(), start, end);
+                    if (best.size() == maxResults && price >= best.peek().getRentalPrice()) {
+                        continue;
+                    }
+                    best.add(new Quote(renter, start, end, name, entry.getKey().getName(), price));
+                    if (best.size() > maxResults) {
+                        best.poll();
+                    }
+                }
+            }
+        }
+        List<Quote> out = new ArrayList<Quote>(best);
+        Collections.sort(out, Collections.reverseOrder(best.comparator()));
+        return out;
+    }
+
+    @Override
+    @QueryBudget(statements = 2)
+    public List<Quote> findAvailableCarTypes(ReservationConstraints constraints) {
+        List<Quote> out = new ArrayList<Quote>();
+        List<CarTypeIndex.Entry> found = availability.findAvailableCarTypes(getAllRentalCompanies(), constraints);
+        if (found.isEmpty()) {
+            return out;
+        }
+        // the pricing of every company that has a match, in one query
+        Set<String> names = new HashSet<String>();
+        for (CarTypeIndex.Entry entry : found) {
+            names.add(entry.getCompany());
+        }
+        Map<String, PricingStrategy> pricing = new HashMap<String, PricingStrategy>();
+        for (CarRentalCompany company : em.createQuery(
+                "SELECT c "
+              + "FROM CarRentalCompany c "
+              + "WHERE c.name IN :names", CarRentalCompany.class)
+                .setParameter("names", names).getResultList()) {
+            pricing.put(company.getName(), company.getPricingStrategy());
+        }
+        for (CarTypeIndex.Entry entry : found) {
+            out.add(new Quote(renter, constraints.getStartDate(), constraints.getEndDate(), entry.getCompany(),
+                    entry.getType().getName(), pricing.get(entry.getCompany())
+                    .getRentalPrice(entry.getType(), constraints.getStartDate(), constraints.getEndDate())));
+        }
+        Collections.sort(out, new Comparator<Quote>() {
+            @Override
+            public int compare(Quote a, Quote b) {
+                return Double.compare(a.getRentalPrice(), b.getRentalPrice());
+            }
+        });
+        return out;
+    }
+
+    @Override
+    @QueryBudget(statements = 2)
     public Quote createQuote(String company, ReservationConstraints constraints) throws ReservationException {
+        admission.enter(company);
         try {
-            Quote out = em.find(CarRentalCompany.class, company).createQuote(constraints, renter);
+            Quote out = journal.attach(availability.attach(stores.attach(em.find(CarRentalCompany.class, company))))
+                    .createQuote(constraints, renter);
             quotes.add(out);
             return out;
         } catch(Exception e) {
@@ -60,6 +189,73 @@ public class CarRentalSession implements CarRentalSessionRemote {
         }
     }
 
+    @Override
+    public long joinWaitlist(String company, ReservationConstraints constraints) {
+        return waitlist.join(renter, company, constraints);
+    }
+
+    @Override
+    public Quote awaitWaitlist(long ticket, long waitMillis) {
+        Quote out = waitlist.await(renter, ticket, waitMillis);
+        if (out != null) {
+            quotes.add(out);
+        }
+        return out;
+    }
+
+    @Override
+    public void leaveWaitlist(long ticket) {
+        waitlist.leave(renter, ticket);
+    }
+
+    @Override
+    public List<QuoteResult> createQuotes(List<QuoteRequest> requests) {
+        Map<String, List<Integer>> positionsByCompany = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < requests.size(); i++) {
+            // a missing request fails with the requests without a company
+            String company = requests.get(i) == null ? null : requests.get(i).getRentalCompany();
+            List<Integer> positions = positionsByCompany.get(company);
+            if (positions == null) {
+                positions = new ArrayList<Integer>();
+                positionsByCompany.put(company, positions);
+            }
+            positions.add(i);
+        }
+
+        QuoteResult[] out = new QuoteResult[requests.size()];
+        for (Map.Entry<String, List<Integer>> entry : positionsByCompany.entrySet()) {
+            List<QuoteRequest> batch = new ArrayList<QuoteRequest>(entry.getValue().size());
+            for (int position : entry.getValue()) {
+                batch.add(requests.get(position));
+            }
+            try {
+                admission.enter(entry.getKey());
+            } catch (ReservationException e) {
+                for (int position : entry.getValue()) {
+                    out[position] = QuoteResult.failure(requests.get(position), e.getMessage());
+                }
+                continue;
+            }
+            CarRentalCompany company = journal.attach(
+                    availability.attach(stores.attach(em.find(CarRentalCompany.class, entry.getKey()))));
+            if (company == null) {
+                for (int position : entry.getValue()) {
+                    out[position] = QuoteResult.failure(requests.get(position),
+                            "<" + entry.getKey() + "> No such car rental company");
+                }
+                continue;
+            }
+            List<QuoteResult> results = company.createQuotes(batch, renter);
+            for (int i = 0; i < results.size(); i++) {
+                out[entry.getValue().get(i)] = results.get(i);
+                if (results.get(i).isSuccessful()) {
+                    quotes.add(results.get(i).getQuote());
+                }
+            }
+        }
+        return Arrays.asList(out);
+    }
+
     @Override
     public List<Quote> getCurrentQuotes() {
         return quotes;
@@ -68,19 +264,63 @@ public class CarRentalSession implements CarRentalSessionRemote {
     @Override
     public List<Reservation> confirmQuotes() throws ReservationException {
         List<Reservation> done = new LinkedList<Reservation>();
+        Set<String> companies = new HashSet<String>();
+        for (Quote quote : quotes) {
+            companies.add(quote.getRentalCompany());
+        }
+        admission.enterAll(companies);
+        journal.lockAll(companies);
         try {
+            Set<CarRentalCompany> confirming = new HashSet<CarRentalCompany>();
             for (Quote quote : quotes) {
-               done.add(em.find(CarRentalCompany.class, quote.getRentalCompany()).confirmQuote(quote));
+               CarRentalCompany company = journal.attach(
+                       stores.attach(em.find(CarRentalCompany.class, quote.getRentalCompany())));
+               done.add(company.confirmQuote(quote));
+               List<RentalEvent> events = company.drainEvents();
+               changes.record(events);
+               availability.publishOnCommit(events);
+               confirming.add(company);
+            }
+            if (journal.isEnabled()) {
+                journal.append(confirming);
             }
         } catch (Exception e) {
             context.setRollbackOnly();
             //for(Reservation r:done)
             //    em.find(CarRentalCompany.class, r.getRentalCompany()).cancelReservation(r);
             throw new ReservationException(e);
+        } finally {
+            journal.unlockAll(companies);
         }
         return done;
     }
 
+    @Override
+    public Reservation modifyReservation(int id, Date newStart, Date newEnd) throws ReservationException {
+        Reservation res = em.find(Reservation.class, id);
+        if (res == null || !res.getCarRenter().equals(renter)) {
+            throw new ReservationException("No reservation " + id + " of " + renter);
+        }
+        Set<String> companies = Collections.singleton(res.getRentalCompany());
+        admission.enter(res.getRentalCompany());
+        journal.lockAll(companies);
+        try {
+            CarRentalCompany company = journal.attach(
+                    stores.attach(em.find(CarRentalCompany.class, res.getRentalCompany())));
+            Reservation out = company.modifyReservation(res, newStart, newEnd);
+            List<RentalEvent> events = company.drainEvents();
+            changes.record(events);
+            availability.publishOnCommit(events);
+            waitlist.offerOnCommit(events);
+            return out;
+        } catch (ReservationException e) {
+            context.setRollbackOnly();
+            throw e;
+        } finally {
+            journal.unlockAll(companies);
+        }
+    }
+
     @Override
     public void setRenterName(String name) {
         if (renter != null) {
@@ -90,18 +330,20 @@ public class CarRentalSession implements CarRentalSessionRemote {
     }
 
     @Override
+    @QueryBudget(statements = 1)
     public String getCheapestCarType(Date start, Date end) {
         CarType cheapestCarType = null;
         for (String companyString : this.getAllRentalCompanies()) {
-            CarRentalCompany company = em.find(CarRentalCompany.class, companyString);
-
-            CarType cheapestType = company.getCheapestCarType(start, end);
+            CarType cheapestType = availability.getCheapestCarType(companyString, start, end);
+            if (cheapestType == null) {
+                continue;
+            }
             if (cheapestCarType == null || cheapestType.getRentalPricePerDay() < cheapestCarType.getRentalPricePerDay()) {
                 cheapestCarType = cheapestType;
             }
 
         }
-        return cheapestCarType.getName();
+        return cheapestCarType == null ? null : cheapestCarType.getName();
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,266 @@
+package session;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import static javax.ejb.ConcurrencyManagementType.BEAN;
+import javax.ejb.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import rental.ChangeBatch;
+import rental.RentalEvent;
+import rental.Reservation;
+import rental.ReservationChange;
+
+/**
+ * Ordered, resumable feed of created, cancelled and moved reservations for
+ * downstream systems. Changes are written as rows in the same transaction as
+ * the booking, so the feed never misses or invents a booking, and the row ids
+ * serve as cursors.
+ *
+ * Recently committed changes are kept in memory, so consumers that keep up
+ * are served without touching the database; a consumer resuming from an older
+ * cursor is served from the change table. Since ids are handed out before
+ * commit, a change is only visible once every change with a lower id has
+ * committed or rolled back, so a cursor never skips a change. Ids are handed
+ * out and marked in flight in one step, under the monitor readers use.
+ */
+@Singleton
+@ConcurrencyManagement(BEAN)
+public class ChangeFeed {
+
+    private static final int TAIL_SIZE = Integer.getInteger("rental.changes.tailSize", 10000);
+    private static final long MAX_WAIT_MILLIS = Long.getLong("rental.changes.maxWaitMillis", 30000L);
+
+    @Resource
+    private TransactionSynchronizationRegistry transactions;
+
+    @PersistenceContext EntityManager em;
+
+    // recently committed changes by id, guarded by this
+    private final TreeMap<Long, ReservationChange> tail = new TreeMap<Long, ReservationChange>();
+    // ids of changes whose transaction is still open, guarded by this
+    private final TreeSet<Long> inFlight = new TreeSet<Long>();
+    // the tail holds every committed change after this id
+    private long tailFrom;
+
+    @PostConstruct
+    public void init() {
+        Long last = em.createQuery(
+                "SELECT MAX(c.id) "
+              + "FROM ReservationChange c", Long.class).getSingleResult();
+        tailFrom = last == null ? 0 : last;
+    }
+
+    /***********
+     * WRITING *
+     ***********/
+
+    /**
+     * Records the created, cancelled and moved reservations among the given
+     * events in the current transaction. Reservations confirmed into the journal
+     * have no id yet; they are recorded by {@link #recordFlushed(List)} once
+     * they reach the database.
+     */
+    public void record(List<RentalEvent> events) {
+        List<RentalEvent> relevant = new ArrayList<RentalEvent>();
+        for (RentalEvent event : events) {
+            if (event.getKind() != RentalEvent.Kind.CAR_ADDED) {
+                relevant.add(event);
+            }
+        }
+        if (relevant.isEmpty()) {
+            return;
+        }
+        // assigns the ids of new reservations
+        em.flush();
+        List<ReservationChange> changes = new ArrayList<ReservationChange>();
+        for (RentalEvent event : relevant) {
+            if (event.getReservation().getId() == 0) {
+                continue;
+            }
+            changes.add(new ReservationChange(getType(event.getKind()), event.getReservation(),
+                    event.getPreviousCarId()));
+        }
+        persist(changes);
+    }
+
+    /**
+     * Records the creation of the given journaled reservations, which the
+     * current transaction copies into the database.
+     */
+    public void recordFlushed(List<Reservation> reservations) {
+        if (reservations.isEmpty()) {
+            return;
+        }
+        // assigns the ids of the reservations
+        em.flush();
+        List<ReservationChange> changes = new ArrayList<ReservationChange>();
+        for (Reservation res : reservations) {
+            changes.add(new ReservationChange(ReservationChange.Type.CREATED, res));
+        }
+        persist(changes);
+    }
+
+    private static ReservationChange.Type getType(RentalEvent.Kind kind) {
+        switch (kind) {
+            case RESERVATION_CANCELLED:
+                return ReservationChange.Type.CANCELLED;
+            case RESERVATION_MOVED:
+                return ReservationChange.Type.MOVED;
+            default:
+                return ReservationChange.Type.CREATED;
+        }
+    }
+
+    private void persist(List<ReservationChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        final List<ReservationChange> recorded = changes;
+        final Set<Long> ids = new HashSet<Long>();
+        // readers take the visible limit under the same monitor, so they never
+        // see an id that has been handed out but is not in flight yet
+        synchronized (this) {
+            boolean assigned = true;
+            for (ReservationChange change : changes) {
+                em.persist(change);
+                assigned &= change.getId() != 0;
+            }
+            if (!assigned) {
+                em.flush();
+            }
+            for (ReservationChange change : changes) {
+                ids.add(change.getId());
+            }
+            inFlight.addAll(ids);
+        }
+        transactions.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                completed(ids, status == Status.STATUS_COMMITTED ? recorded : null);
+            }
+        });
+    }
+
+    private synchronized void completed(Set<Long> ids, List<ReservationChange> committed) {
+        inFlight.removeAll(ids);
+        if (committed != null) {
+            for (ReservationChange change : committed) {
+                tail.put(change.getId(), change);
+            }
+            while (tail.size() > TAIL_SIZE) {
+                tailFrom = tail.pollFirstEntry().getKey();
+            }
+        }
+        notifyAll();
+    }
+
+    /***********
+     * READING *
+     ***********/
+
+    /**
+     * @return at most the given number of changes after the given cursor,
+     *         possibly none
+     */
+    public ChangeBatch read(long cursor, int max) {
+        long limit;
+        synchronized (this) {
+            limit = getVisibleLimit();
+            if (cursor >= tailFrom) {
+                List<ReservationChange> out = new ArrayList<ReservationChange>();
+                for (ReservationChange change : tail.subMap(cursor, false, limit, false).values()) {
+                    if (out.size() == max) {
+                        break;
+                    }
+                    out.add(change);
+                }
+                return batch(out, cursor);
+            }
+        }
+        return batch(em.createQuery(
+                "SELECT c "
+              + "FROM ReservationChange c "
+              + "WHERE c.id > :cursor AND c.id < :limit "
+              + "ORDER BY c.id", ReservationChange.class)
+                .setParameter("cursor", cursor)
+                .setParameter("limit", limit)
+                .setMaxResults(max)
+                .getResultList(), cursor);
+    }
+
+    /**
+     * Like {@link #read(long, int)}, but waits up to the given time for a
+     * change if there is none yet.
+     */
+    public ChangeBatch await(long cursor, int max, long waitMillis) {
+        long deadline = System.currentTimeMillis() + Math.min(waitMillis, MAX_WAIT_MILLIS);
+        ChangeBatch out = read(cursor, max);
+        while (out.isEmpty()) {
+            synchronized (this) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return out;
+                }
+                if (!hasVisibleAfter(cursor)) {
+                    try {
+                        wait(left);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return out;
+                    }
+                }
+            }
+            out = read(cursor, max);
+        }
+        return out;
+    }
+
+    /**
+     * @return the cursor of the latest visible change
+     */
+    public long getCursor() {
+        long limit;
+        synchronized (this) {
+            limit = getVisibleLimit();
+            Long last = tail.lowerKey(limit);
+            if (last != null) {
+                return last;
+            }
+        }
+        Long last = em.createQuery(
+                "SELECT MAX(c.id) "
+              + "FROM ReservationChange c "
+              + "WHERE c.id < :limit", Long.class)
+                .setParameter("limit", limit)
+                .getSingleResult();
+        return last == null ? 0 : last;
+    }
+
+    private long getVisibleLimit() {
+        return inFlight.isEmpty() ? Long.MAX_VALUE : inFlight.first();
+    }
+
+    private boolean hasVisibleAfter(long cursor) {
+        Long next = tail.higherKey(cursor);
+        return next != null && next < getVisibleLimit();
+    }
+
+    private static ChangeBatch batch(List<ReservationChange> changes, long cursor) {
+        return new ChangeBatch(changes, changes.isEmpty() ? cursor : changes.get(changes.size() - 1).getId());
+    }
+}
@@ -0,0 +1,294 @@
+package session;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import static javax.ejb.ConcurrencyManagementType.BEAN;
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import rental.CarRentalCompany;
+import rental.Reservation;
+import rental.ReservationJournal;
+
+/**
+ * Owns the reservation journal, enabled by the {@code rental.journal.dir}
+ * system property. Confirmations append to the journal instead of inserting
+ * into the database themselves; before their transaction commits they wait
+ * for a shared fsync, which rolls the transaction back if it fails, and when
+ * it rolls back their entries are discarded. This
+ * bean copies the committed entries into the database in batches every
+ * second and replays whatever was left pending at startup.
+ *
+ * A confirmed reservation is durable once it is in the journal, but keeps id
+ * 0 and is missing from the manager's counts and the change feed until it has
+ * been flushed.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(BEAN)
+public class JournalWriter {
+
+    private static final Logger logger = Logger.getLogger(JournalWriter.class.getName());
+
+    private static final String DIRECTORY = System.getProperty("rental.journal.dir");
+    private static final int BATCH_SIZE = Integer.getInteger("rental.journal.batchSize", 1000);
+
+    @Resource
+    private TransactionSynchronizationRegistry transactions;
+
+    @PersistenceContext EntityManager em;
+
+    @EJB
+    private AvailabilityProjection availability;
+
+    @EJB
+    private ChangeFeed changes;
+
+    private ReservationJournal journal;
+    // entries up to here were pending at startup and may already be in the database
+    private long replayedUntil;
+    private final ConcurrentMap<String, ReentrantLock> locks = new ConcurrentHashMap<String, ReentrantLock>();
+    private final AtomicBoolean flushing = new AtomicBoolean();
+
+    @PostConstruct
+    public void open() {
+        if (DIRECTORY == null) {
+            return;
+        }
+        try {
+            File directory = new File(DIRECTORY);
+            directory.mkdirs();
+            journal = new ReservationJournal(new File(directory, "reservations.journal"));
+        } catch (IOException e) {
+            throw new EJBException("Cannot open reservation journal in " + DIRECTORY, e);
+        }
+        List<ReservationJournal.Entry> pending = journal.getPending(Integer.MAX_VALUE);
+        if (!pending.isEmpty()) {
+            replayedUntil = pending.get(pending.size() - 1).getSequence();
+            logger.log(Level.INFO, "Replaying {0} journaled reservations", pending.size());
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot close reservation journal", e);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return journal != null;
+    }
+
+    /**
+     * Lets the confirmations of the given company, which must be managed in
+     * the current transaction, go to the journal.
+     *
+     * @return the same company, for chaining
+     */
+    public CarRentalCompany attach(CarRentalCompany company) {
+        if (journal != null && company != null && !company.hasJournal()) {
+            company.attachJournal(journal);
+        }
+        return company;
+    }
+
+    /***********
+     * LOCKING *
+     ***********/
+
+    /**
+     * Takes the journal locks of the given companies in a fixed order. Cars
+     * are selected and journaled under these locks, so two confirmations
+     * cannot pick the same car before either is in the journal.
+     */
+    public void lockAll(Collection<String> companies) {
+        if (journal == null) {
+            return;
+        }
+        for (String company : new TreeSet<String>(companies)) {
+            getLock(company).lock();
+        }
+    }
+
+    public void unlockAll(Collection<String> companies) {
+        for (String company : new TreeSet<String>(companies)) {
+            ReentrantLock lock = getLock(company);
+            if (lock.isHeldByCurrentThread()) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private ReentrantLock getLock(String company) {
+        ReentrantLock lock = locks.get(company);
+        if (lock == null) {
+            locks.putIfAbsent(company, new ReentrantLock());
+            lock = locks.get(company);
+        }
+        return lock;
+    }
+
+    /***********
+     * WRITING *
+     ***********/
+
+    /**
+     * Appends the reservations the given companies confirmed in the current
+     * transaction. Must be called while holding their locks. When the
+     * transaction is about to commit, the entries are committed in the journal
+     * and the commit waits until they are on disk; the locks are given back by
+     * then, so concurrent confirmations share the fsync. If the fsync fails,
+     * the transaction rolls back and the caller gets the failure. If it rolls
+     * back, the entries are discarded.
+     */
+    public void append(Collection<CarRentalCompany> companies) throws IOException {
+        List<Reservation> reservations = new ArrayList<Reservation>();
+        for (CarRentalCompany company : companies) {
+            reservations.addAll(company.drainJournaled());
+        }
+        if (reservations.isEmpty()) {
+            return;
+        }
+        final long last = journal.append(reservations);
+        final long first = last - reservations.size() + 1;
+        transactions.registerInterposedSynchronization(new Synchronization() {
+            private boolean committed;
+
+            @Override
+            public void beforeCompletion() {
+                if (transactions.getTransactionStatus() != Status.STATUS_ACTIVE) {
+                    return;
+                }
+                committed = true;
+                // throwing here still rolls the transaction back
+                journal.awaitDurable(journal.commit(first, last));
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    return;
+                }
+                long write = journal.discard(first, last);
+                if (committed) {
+                    // otherwise they would be replayed after a restart
+                    journal.awaitDurable(write);
+                }
+                logger.log(Level.WARNING, "Discarded journaled reservations {0} to {1} that rolled back",
+                        new Object[]{first, last});
+            }
+        });
+    }
+
+    /************
+     * FLUSHING *
+     ************/
+
+    @Schedule(second = "*", minute = "*", hour = "*", persistent = false)
+    public void flush() {
+        if (journal == null || !flushing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<ReservationJournal.Entry> entries = journal.getPending(BATCH_SIZE);
+            if (entries.isEmpty()) {
+                flushing.set(false);
+                return;
+            }
+            Map<String, CarRentalCompany> companies = new HashMap<String, CarRentalCompany>();
+            List<Reservation> added = new ArrayList<Reservation>();
+            for (ReservationJournal.Entry entry : entries) {
+                Reservation res = entry.toReservation();
+                if (entry.getSequence() <= replayedUntil && isStored(res)) {
+                    continue;
+                }
+                CarRentalCompany company = companies.get(entry.getCompany());
+                if (company == null) {
+                    company = em.find(CarRentalCompany.class, entry.getCompany());
+                    companies.put(entry.getCompany(), company);
+                }
+                company.addJournaledReservation(res, entry.getSequence() <= replayedUntil);
+                added.add(res);
+            }
+            changes.recordFlushed(added);
+            for (CarRentalCompany company : companies.values()) {
+                availability.publishOnCommit(company.drainEvents());
+            }
+            final long last = entries.get(entries.size() - 1).getSequence();
+            final Set<String> names = new HashSet<String>(companies.keySet());
+            final int flushed = entries.size();
+            transactions.registerInterposedSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() {
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    try {
+                        if (status == Status.STATUS_COMMITTED) {
+                            // under the locks, so no confirmation sees the booking in neither place
+                            lockAll(names);
+                            try {
+                                journal.markFlushed(last);
+                            } finally {
+                                unlockAll(names);
+                            }
+                            logger.log(Level.FINE, "Flushed {0} journaled reservations", flushed);
+                        } else {
+                            logger.log(Level.WARNING, "Flushing {0} journaled reservations rolled back", flushed);
+                        }
+                    } finally {
+                        flushing.set(false);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            flushing.set(false);
+            throw e;
+        }
+    }
+
+    private boolean isStored(Reservation res) {
+        return em.createQuery(
+                "SELECT COUNT(r) "
+              + "FROM Reservation r "
+              + "WHERE r.rentalCompany = :company AND r.carId = :car "
+              + "AND r.carRenter = :renter AND r.startDate = :start AND r.endDate = :end", Long.class)
+                .setParameter("company", res.getRentalCompany())
+                .setParameter("car", res.getCarId())
+                .setParameter("renter", res.getCarRenter())
+                .setParameter("start", res.getStartDate())
+                .setParameter("end", res.getEndDate())
+                .getSingleResult() > 0;
+    }
+}
@@ -1,27 +1,88 @@
 package session;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import static javax.ejb.TransactionAttributeType.NOT_SUPPORTED;
+import javax.interceptor.Interceptors;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import rental.AdmissionStatistics;
 import rental.Car;
 import rental.CarRentalCompany;
 import rental.CarType;
+import rental.ChangeBatch;
+import rental.PricingStrategy;
+import rental.RentalEvent;
 import rental.Reservation;
+import rental.ReservationChange;
+import rental.ReservationException;
+import rental.SnapshotFormat;
+import rental.UtilisationReport;
 
 @Stateless
-public class ManagerSession implements ManagerSessionRemote {
+@Interceptors(RequestTracing.class)
+public class ManagerSession implements ManagerSessionRemote, ManagerSessionLocal {
+
+    // keeps the IN-list of a single lookup query within what the database handles well
+    private static final int CANCEL_BATCH_SIZE = 500;
+    // changes per transaction when writing or restoring incremental snapshots
+    private static final int SNAPSHOT_BATCH_SIZE = 1000;
+    // snapshots are only read and written in this directory
+    private static final String SNAPSHOT_DIRECTORY = System.getProperty("rental.snapshot.dir");
+    // bytes of a snapshot sent in one call
+    private static final int SNAPSHOT_CHUNK_SIZE = 1 << 20;
     
     @PersistenceContext EntityManager em;
+
+    @EJB
+    private AvailabilityProjection availability;
+
+    @EJB
+    private StartupWarmup warmup;
+
+    @EJB
+    private AdmissionControl admission;
+
+    @EJB
+    private JournalWriter journal;
+
+    @EJB
+    private ChangeFeed changes;
+
+    @EJB
+    private SnapshotImporter importer;
+
+    @EJB
+    private UtilisationPool utilisation;
+
+    @EJB
+    private Waitlist waitlist;
     
     @Override
     public Set<CarType> getCarTypes(String company) {
@@ -50,7 +111,7 @@ public class ManagerSession implements ManagerSessionRemote {
     @Override
     public int getNumberOfReservations(String company, String type, int id) {
         try {
-            return em.find(CarRentalCompany.class, company).getCar(id).getReservations().size();
+            return em.find(CarRentalCompany.class, company).getCar(id).getNbReservationsInHistory();
         } catch (IllegalArgumentException ex) {
             Logger.getLogger(ManagerSession.class.getName()).log(Level.SEVERE, null, ex);
             return 0;
@@ -58,20 +119,20 @@ public class ManagerSession implements ManagerSessionRemote {
     }
 
     @Override
+    @QueryBudget(statements = 1)
     public int getNumberOfReservations(String company, String type) {
-        Set<Reservation> out = new HashSet<Reservation>();
-        try {
-            for(Car c: em.find(CarRentalCompany.class, company).getCars(type)){
-                out.addAll(c.getReservations());
-            }
-        } catch (IllegalArgumentException ex) {
-            Logger.getLogger(ManagerSession.class.getName()).log(Level.SEVERE, null, ex);
-            return 0;
-        }
-        return out.size();
+        // counted by the database, so a cold persistence context loads no cars
+        return em.createQuery(
+                "SELECT COUNT(r) "
+                + "FROM Reservation r "
+                + "WHERE r.rentalCompany = :company AND r.carType = :type", Long.class)
+                .setParameter("company", company)
+                .setParameter("type", type)
+                .getSingleResult().intValue();
     }
 
     @Override
+    @QueryBudget(statements = 1)
     public int getNumberOfReservationsBy(String renter) {
         /*Set<Reservation> out = new HashSet<Reservation>();
         for(String crcString : this.getAllRentalCompanies()) {
@@ -83,7 +144,86 @@ public class ManagerSession implements ManagerSessionRemote {
         return em.createQuery(
                 "SELECT COUNT(r) "
                 + "FROM Reservation r "
-                + "WHERE r.carRenter = :name").setParameter("name", renter).getFirstResult();
+                + "WHERE r.carRenter = :name", Long.class)
+                .setParameter("name", renter)
+                .getSingleResult().intValue();
+    }
+    
+    @Override
+    public UtilisationReport getUtilisationReport(String company, Date start, Date end) {
+        // batch fetching loads the reservations of all cars in a few queries
+        // up front, so the fork-join workers never touch the database
+        List<Car> cars = em.createQuery(
+                "SELECT c "
+                + "FROM CarRentalCompany co JOIN co.cars c "
+                + "WHERE co.name = :company", Car.class)
+                .setParameter("company", company)
+                .setHint("eclipselink.batch", "c.reservations")
+                .setHint("eclipselink.batch", "c.archivedReservations")
+                .setHint("eclipselink.batch", "c.type")
+                .getResultList();
+        for (Car c : cars) {
+            c.getNbReservationsInHistory();
+        }
+        return utilisation.report(company, cars, start, end);
+    }
+
+    @Override
+    public int cancelReservations(List<Integer> ids) throws ReservationException {
+        // the companies are locked up front, as for confirmations, so no
+        // journaled confirmation of theirs runs alongside
+        Set<String> names = new HashSet<String>();
+        for (int from = 0; from < ids.size(); from += CANCEL_BATCH_SIZE) {
+            names.addAll(em.createQuery(
+                    "SELECT DISTINCT r.rentalCompany "
+                    + "FROM Reservation r "
+                    + "WHERE r.id IN :ids", String.class)
+                    .setParameter("ids", ids.subList(from, Math.min(ids.size(), from + CANCEL_BATCH_SIZE)))
+                    .getResultList());
+        }
+        admission.enterAll(names);
+        journal.lockAll(names);
+        try {
+            int cancelled = 0;
+            Map<String, CarRentalCompany> companies = new HashMap<String, CarRentalCompany>();
+            for (int from = 0; from < ids.size(); from += CANCEL_BATCH_SIZE) {
+                List<Reservation> batch = em.createQuery(
+                        "SELECT r "
+                        + "FROM Reservation r "
+                        + "WHERE r.id IN :ids", Reservation.class)
+                        .setParameter("ids", ids.subList(from, Math.min(ids.size(), from + CANCEL_BATCH_SIZE)))
+                        .getResultList();
+                for (Reservation r : batch) {
+                    CarRentalCompany company = companies.get(r.getRentalCompany());
+                    if (company == null) {
+                        company = journal.attach(em.find(CarRentalCompany.class, r.getRentalCompany()));
+                        companies.put(r.getRentalCompany(), company);
+                    }
+                    company.cancelReservation(r);
+                    em.remove(r);
+                    cancelled++;
+                }
+            }
+            for (CarRentalCompany company : companies.values()) {
+                List<RentalEvent> events = company.drainEvents();
+                changes.record(events);
+                availability.publishOnCommit(events);
+                waitlist.offerOnCommit(events);
+            }
+            return cancelled;
+        } finally {
+            journal.unlockAll(names);
+        }
+    }
+
+    @Override
+    public ChangeBatch getReservationChanges(long cursor, int max) {
+        return changes.read(cursor, max);
+    }
+
+    @Override
+    public ChangeBatch getReservationChanges(long cursor, int max, long waitMillis) {
+        return changes.await(cursor, max, waitMillis);
     }
     
     public List<String> getAllRentalCompanies(){
@@ -121,6 +261,222 @@ public class ManagerSession implements ManagerSessionRemote {
         Car car = new Car(id, carType);
         CarRentalCompany company = em.find(CarRentalCompany.class, companyName);
         company.addCar(car);
+        availability.publishOnCommit(company.drainEvents());
+    }
+
+    /************
+     * SNAPSHOT *
+     ************/
+
+    @Override
+    public long exportSnapshot(String name) {
+        // taken first, so an incremental snapshot from here misses nothing
+        long cursor = changes.getCursor();
+        List<String> names = getAllRentalCompanies();
+        int exported = 0;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getSnapshotFile(name))));
+            try {
+                SnapshotFormat.writeHeader(out, SnapshotFormat.FULL, 0, cursor);
+                SnapshotFormat.writeTypes(out, em.createQuery(
+                        "SELECT t "
+                        + "FROM CarType t", CarType.class).getResultList());
+                for (String companyName : names) {
+                    List<CarRentalCompany> company = em.createQuery(
+                            "SELECT c "
+                            + "FROM CarRentalCompany c "
+                            + "WHERE c.name = :name", CarRentalCompany.class)
+                            .setParameter("name", companyName)
+                            .setHint("eclipselink.batch", "c.cars")
+                            .setHint("eclipselink.batch", "c.cars.reservations")
+                            .setHint("eclipselink.batch", "c.cars.archivedReservations")
+                            .getResultList();
+                    if (company.isEmpty()) {
+                        // removed since it was listed
+                        continue;
+                    }
+                    SnapshotFormat.writeCompany(out, company.get(0));
+                    exported++;
+                    // one company at a time in memory
+                    em.clear();
+                }
+                SnapshotFormat.writeEndOfCompanies(out);
+                SnapshotFormat.writeEndOfChanges(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new EJBException("Cannot write snapshot " + name, e);
+        }
+        Logger.getLogger(ManagerSession.class.getName()).log(Level.INFO,
+                "Exported {0} companies to {1} up to change {2}", new Object[]{exported, name, cursor});
+        return cursor;
+    }
+
+    @Override
+    public long exportSnapshot(String name, long sinceCursor) {
+        // taken first, so the header can name it; every change up to it is visible
+        long until = Math.max(sinceCursor, changes.getCursor());
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getSnapshotFile(name))));
+            try {
+                SnapshotFormat.writeHeader(out, SnapshotFormat.INCREMENTAL, sinceCursor, until);
+                SnapshotFormat.writeTypes(out, em.createQuery(
+                        "SELECT t "
+                        + "FROM CarType t", CarType.class).getResultList());
+                SnapshotFormat.writeEndOfCompanies(out);
+                long cursor = sinceCursor;
+                while (cursor < until) {
+                    ChangeBatch batch = changes.read(cursor, SNAPSHOT_BATCH_SIZE);
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    for (ReservationChange change : batch.getChanges()) {
+                        if (change.getId() <= until) {
+                            SnapshotFormat.writeChange(out, change);
+                        }
+                    }
+                    cursor = batch.getNextCursor();
+                    // one batch at a time in memory
+                    em.clear();
+                }
+                SnapshotFormat.writeEndOfChanges(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new EJBException("Cannot write snapshot " + name, e);
+        }
+        return until;
+    }
+
+    @Override
+    @TransactionAttribute(NOT_SUPPORTED)
+    public int importSnapshot(String name) {
+        int restored = 0;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(getSnapshotFile(name))));
+            try {
+                SnapshotFormat.Header header = SnapshotFormat.readHeader(in);
+                importer.importTypes(SnapshotFormat.readTypes(in));
+
+                List<Future<Integer>> imports = new ArrayList<Future<Integer>>();
+                byte[] section = SnapshotFormat.readCompanySection(in);
+                while (section != null) {
+                    imports.add(importer.importCompany(section));
+                    section = SnapshotFormat.readCompanySection(in);
+                }
+                for (Future<Integer> restoring : imports) {
+                    restored += restoring.get();
+                }
+
+                List<SnapshotFormat.Change> batch = new ArrayList<SnapshotFormat.Change>();
+                SnapshotFormat.Change change = SnapshotFormat.readChange(in);
+                while (change != null) {
+                    batch.add(change);
+                    if (batch.size() == SNAPSHOT_BATCH_SIZE) {
+                        restored += importer.applyChanges(batch);
+                        batch.clear();
+                    }
+                    change = SnapshotFormat.readChange(in);
+                }
+                if (!batch.isEmpty()) {
+                    restored += importer.applyChanges(batch);
+                }
+                Logger.getLogger(ManagerSession.class.getName()).log(Level.INFO,
+                        "Restored {0} {1} snapshot {2} up to change {3}",
+                        new Object[]{restored, header.isIncremental() ? "incremental" : "full", name,
+                            header.getToCursor()});
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new EJBException("Cannot read snapshot " + name, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EJBException("Interrupted while restoring " + name, e);
+        } catch (ExecutionException e) {
+            throw new EJBException("Cannot restore " + name, e);
+        }
+        return restored;
+    }
+
+    @Override
+    public byte[] readSnapshot(String name, long offset, int maxBytes) {
+        try {
+            RandomAccessFile file = new RandomAccessFile(getSnapshotFile(name), "r");
+            try {
+                int length = (int) Math.max(0, Math.min(Math.min(maxBytes, SNAPSHOT_CHUNK_SIZE), file.length() - offset));
+                byte[] out = new byte[length];
+                file.seek(offset);
+                file.readFully(out);
+                return out;
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            throw new EJBException("Cannot read snapshot " + name, e);
+        }
+    }
+
+    @Override
+    public void writeSnapshot(String name, long offset, byte[] chunk) {
+        if (chunk.length > SNAPSHOT_CHUNK_SIZE)
+            throw new IllegalArgumentException("Snapshot chunks are at most " + SNAPSHOT_CHUNK_SIZE + " bytes");
+        try {
+            RandomAccessFile file = new RandomAccessFile(getSnapshotFile(name), "rw");
+            try {
+                if (offset != file.length() && offset != 0)
+                    throw new IllegalArgumentException("Snapshot chunks must be written in order");
+                file.setLength(offset);
+                file.seek(offset);
+                file.write(chunk);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            throw new EJBException("Cannot write snapshot " + name, e);
+        }
+    }
+
+    /**
+     * @return the snapshot of the given name in the snapshot directory
+     * @throws IllegalArgumentException if the name leads out of that directory
+     */
+    private static File getSnapshotFile(String name) throws IOException {
+        if (SNAPSHOT_DIRECTORY == null)
+            throw new IllegalStateException("Snapshots are disabled, set rental.snapshot.dir to enable them");
+        File directory = new File(SNAPSHOT_DIRECTORY).getCanonicalFile();
+        File file = new File(directory, name).getCanonicalFile();
+        if (name.isEmpty() || !directory.equals(file.getParentFile()))
+            throw new IllegalArgumentException("<" + name + "> Not a snapshot name");
+        directory.mkdirs();
+        return file;
+    }
+
+    @Override
+    public void setPricingStrategy(String companyName, PricingStrategy strategy) {
+        em.find(CarRentalCompany.class, companyName).setPricingStrategy(strategy);
+    }
+
+    @Override
+    public List<AdmissionStatistics> getAdmissionStatistics() {
+        return admission.getStatistics();
+    }
+
+    @Override
+    public boolean isReady() {
+        return warmup.isReady();
+    }
+
+    @Override
+    public long getStartupTimeMillis() {
+        return warmup.getStartupTimeMillis();
+    }
+
+    @Override
+    public String getStartupFailure() {
+        return warmup.getStartupFailure();
     }
 
     private CarRentalCompany loadRental(String name, String datafile) {
@@ -171,20 +527,23 @@ public class ManagerSession implements ManagerSessionRemote {
     }
 
     @Override
+    @QueryBudget(statements = 1)
     public String getMostPopularCarRentalCompany() {
         String popularCompany = "";
-        int nbReservations = 0;
-
-        for (String companyString : this.getAllRentalCompanies()) {
-
-            CarRentalCompany company = em.find(CarRentalCompany.class, companyString);
+        long nbReservations = 0;
 
-            int reservationCount = company.getTotalNbReservations();
-            if (reservationCount > nbReservations) {
+        List<Object[]> counts = em.createQuery(
+                "SELECT r.rentalCompany, COUNT(r) "
+                + "FROM Reservation r "
+                + "GROUP BY r.rentalCompany", Object[].class).getResultList();
+        for (Object[] count : counts) {
+            String companyString = (String) count[0];
+            long reservationCount = (Long) count[1];
+            if (reservationCount > nbReservations
+                    || (reservationCount == nbReservations && companyString.compareTo(popularCompany) < 0)) {
                 nbReservations = reservationCount;
                 popularCompany = companyString;
             }
-
         }
         return popularCompany;
     }
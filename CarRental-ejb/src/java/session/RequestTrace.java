@@ -0,0 +1,130 @@
+package session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What one session bean call did in the persistence unit: the statements it
+ * sent to the database, the entities built from their rows and the time spent
+ * on both. The trace of the call in progress is bound to its thread; work the
+ * call hands to other threads is not included.
+ */
+public class RequestTrace {
+
+    private static final ThreadLocal<RequestTrace> current = new ThreadLocal<RequestTrace>();
+
+    private final String method;
+    private final long startedAt = System.nanoTime();
+    private final List<String> statements = new ArrayList<String>();
+    private final Map<String, Integer> loads = new TreeMap<String, Integer>();
+    private long persistenceNanos;
+    // nesting of the database operations in progress, which are timed as one
+    private int depth;
+    private long enteredAt;
+    private long endedAt;
+
+    private RequestTrace(String method) {
+        this.method = method;
+    }
+
+    /**
+     * Starts tracing the given call on this thread.
+     */
+    public static RequestTrace begin(String method) {
+        RequestTrace out = new RequestTrace(method);
+        current.set(out);
+        return out;
+    }
+
+    /**
+     * @return the trace of the call in progress on this thread, or null if
+     *         it is not traced
+     */
+    public static RequestTrace current() {
+        return current.get();
+    }
+
+    /**
+     * Stops tracing the call in progress on this thread.
+     */
+    public void end() {
+        endedAt = System.nanoTime();
+        current.remove();
+    }
+
+    /*************
+     * RECORDING *
+     *************/
+
+    void statement(String sql) {
+        statements.add(sql);
+    }
+
+    void load(String entity) {
+        Integer count = loads.get(entity);
+        loads.put(entity, count == null ? 1 : count + 1);
+    }
+
+    void enter() {
+        if (depth++ == 0) {
+            enteredAt = System.nanoTime();
+        }
+    }
+
+    void exit() {
+        if (depth > 0 && --depth == 0) {
+            persistenceNanos += System.nanoTime() - enteredAt;
+        }
+    }
+
+    /***********
+     * READING *
+     ***********/
+
+    public String getMethod() {
+        return method;
+    }
+
+    public List<String> getStatements() {
+        return statements;
+    }
+
+    public int getNbStatements() {
+        return statements.size();
+    }
+
+    /**
+     * @return the number of entities built from rows by entity name
+     */
+    public Map<String, Integer> getLoads() {
+        return loads;
+    }
+
+    public int getNbLoads() {
+        int out = 0;
+        for (int count : loads.values()) {
+            out += count;
+        }
+        return out;
+    }
+
+    public long getPersistenceMillis() {
+        return persistenceNanos / 1000000;
+    }
+
+    public long getElapsedMillis() {
+        return ((endedAt == 0 ? System.nanoTime() : endedAt) - startedAt) / 1000000;
+    }
+
+    /*************
+     * TO STRING *
+     *************/
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d statements, %d entities loaded %s, %d of %d ms in persistence",
+                method, getNbStatements(), getNbLoads(), loads, getPersistenceMillis(), getElapsedMillis());
+    }
+}
@@ -0,0 +1,53 @@
+package session;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ejb.EJBException;
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.InvocationContext;
+
+/**
+ * Traces every business method call of the session beans it is attached to
+ * and logs the trace at FINE, with the statements at FINER. A call that sends
+ * more statements than the {@link QueryBudget} of its method is logged as a
+ * warning or, while the {@code rental.trace.enforceBudgets} system property is
+ * true, fails and rolls back, so test suites can assert the budgets. Calls go
+ * through untraced unless a {@link TracingProfiler} is installed.
+ */
+public class RequestTracing {
+
+    private static final Logger logger = Logger.getLogger(RequestTracing.class.getName());
+
+    @AroundInvoke
+    public Object trace(InvocationContext invocation) throws Exception {
+        if (!TracingProfiler.isInstalled() || RequestTrace.current() != null) {
+            // part of a call that is traced already
+            return invocation.proceed();
+        }
+        String method = invocation.getMethod().getDeclaringClass().getSimpleName()
+                + "." + invocation.getMethod().getName();
+        RequestTrace trace = RequestTrace.begin(method);
+        Object out;
+        try {
+            out = invocation.proceed();
+        } finally {
+            trace.end();
+            logger.log(Level.FINE, "{0}", trace);
+            if (logger.isLoggable(Level.FINER)) {
+                for (String statement : trace.getStatements()) {
+                    logger.log(Level.FINER, "{0}: {1}", new Object[]{method, statement});
+                }
+            }
+        }
+        QueryBudget budget = invocation.getMethod().getAnnotation(QueryBudget.class);
+        if (budget != null && trace.getNbStatements() > budget.statements()) {
+            String message = String.format("%s sent %d statements, over its budget of %d: %s",
+                    method, trace.getNbStatements(), budget.statements(), trace.getStatements());
+            if (Boolean.getBoolean("rental.trace.enforceBudgets")) {
+                throw new EJBException(message);
+            }
+            logger.log(Level.WARNING, message);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,51 @@
+package session;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import rental.CarRentalCompany;
+
+/**
+ * Moves reservations that have ended out of the active partition every night,
+ * so availability checks only iterate current and future bookings.
+ */
+@Singleton
+public class ReservationArchiver {
+
+    private static final Logger logger = Logger.getLogger(ReservationArchiver.class.getName());
+
+    @PersistenceContext EntityManager em;
+
+    @EJB
+    private ReservationStores stores;
+
+    @Schedule(hour = "3", persistent = false)
+    public void archivePastReservations() {
+        Calendar today = Calendar.getInstance();
+        today.set(Calendar.HOUR_OF_DAY, 0);
+        today.set(Calendar.MINUTE, 0);
+        today.set(Calendar.SECOND, 0);
+        today.set(Calendar.MILLISECOND, 0);
+        logger.log(Level.INFO, "Archiving reservations that ended before {0}", today.getTime());
+        archiveReservationsEndedBefore(today.getTime());
+    }
+
+    public int archiveReservationsEndedBefore(Date date) {
+        int archived = 0;
+        List<CarRentalCompany> companies = em.createQuery(
+                "SELECT c "
+              + "FROM CarRentalCompany c", CarRentalCompany.class).getResultList();
+        for (CarRentalCompany company : companies) {
+            archived += company.archiveReservationsEndedBefore(date);
+        }
+        stores.archiveOnCommit(date);
+        return archived;
+    }
+}
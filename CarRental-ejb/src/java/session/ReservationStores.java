@@ -0,0 +1,260 @@
+package session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import static javax.ejb.ConcurrencyManagementType.BEAN;
+import javax.ejb.EJBException;
+import javax.ejb.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import rental.CarRentalCompany;
+import rental.Days;
+import rental.MappedReservationStore;
+import rental.RentalEvent;
+import rental.Reservation;
+
+/**
+ * Opens one memory-mapped reservation store per company in the directory
+ * given by the {@code rental.offheap.dir} system property, and lets the
+ * booking path check availability against it instead of loading the
+ * reservations of every car. Without that property nothing changes.
+ *
+ * The database stays the system of record. The stores follow it through the
+ * events every committed change publishes, whichever bean made it, and drop
+ * bookings once they are archived. A store that was not closed cleanly, that
+ * missed events while closed, or whose number of bookings differs from the
+ * database is rebuilt from the database when it is opened.
+ */
+@Singleton
+@ConcurrencyManagement(BEAN)
+public class ReservationStores {
+
+    private static final Logger logger = Logger.getLogger(ReservationStores.class.getName());
+
+    private static final String DIRECTORY = System.getProperty("rental.offheap.dir");
+
+    @Resource
+    private TransactionSynchronizationRegistry transactions;
+
+    @PersistenceContext EntityManager em;
+
+    private final Map<String, MappedReservationStore> stores = new ConcurrentHashMap<String, MappedReservationStore>();
+    // events that arrive for a company while its store is being opened, applied once it is in place
+    private final Map<String, List<RentalEvent>> backlogs = new HashMap<String, List<RentalEvent>>();
+    // companies whose bookings changed while their store was closed
+    private final Set<String> missed = new HashSet<String>();
+    private final Object opening = new Object();
+
+    public boolean isEnabled() {
+        return DIRECTORY != null;
+    }
+
+    /**
+     * Lets the given company, which must be managed in the current
+     * transaction, check availability against its store.
+     *
+     * @return the same company, for chaining
+     */
+    public CarRentalCompany attach(CarRentalCompany company) {
+        if (DIRECTORY != null && company != null && !company.hasReservationStore()) {
+            company.attachReservationStore(open(company.getName()));
+        }
+        return company;
+    }
+
+    /**
+     * Opens the store of the given company, unless it is open already.
+     */
+    public MappedReservationStore open(String company) {
+        MappedReservationStore store = stores.get(company);
+        if (store != null) {
+            return store;
+        }
+        synchronized (opening) {
+            store = stores.get(company);
+            if (store != null) {
+                return store;
+            }
+            synchronized (backlogs) {
+                backlogs.put(company, new ArrayList<RentalEvent>());
+            }
+            try {
+                store = load(company);
+            } catch (IOException e) {
+                synchronized (backlogs) {
+                    backlogs.remove(company);
+                }
+                throw new EJBException("<" + company + "> Cannot open reservation store", e);
+            }
+            synchronized (backlogs) {
+                for (RentalEvent event : backlogs.remove(company)) {
+                    apply(store, event);
+                }
+                stores.put(company, store);
+            }
+            return store;
+        }
+    }
+
+    private MappedReservationStore load(String company) throws IOException {
+        File directory = new File(DIRECTORY);
+        directory.mkdirs();
+        MappedReservationStore store = new MappedReservationStore(new File(directory, fileName(company)));
+        boolean missedChanges;
+        synchronized (backlogs) {
+            missedChanges = missed.remove(company);
+        }
+        long stored = em.createQuery(
+                "SELECT COUNT(r) "
+              + "FROM CarRentalCompany c JOIN c.cars car JOIN car.reservations r "
+              + "WHERE c.name = :company", Long.class)
+                .setParameter("company", company)
+                .setFlushMode(FlushModeType.COMMIT)
+                .getSingleResult();
+        if (store.wasClosedCleanly() && !missedChanges && store.getNbReservations() == stored) {
+            logger.log(Level.INFO, "<{0}> Opened reservation store with {1} bookings",
+                    new Object[]{company, stored});
+            return store;
+        }
+        // only the columns, so the rebuild builds no entities
+        List<Object[]> rows = em.createQuery(
+                "SELECT car.id, r.startDate, r.endDate, r.carRenter, r.rentalPrice "
+              + "FROM CarRentalCompany c JOIN c.cars car JOIN car.reservations r "
+              + "WHERE c.name = :company", Object[].class)
+                .setParameter("company", company)
+                .setFlushMode(FlushModeType.COMMIT)
+                .getResultList();
+        store.clear();
+        for (Object[] row : rows) {
+            store.add((Integer) row[0], Days.toEpochDay((Date) row[1]), Days.toEpochDay((Date) row[2]),
+                    (String) row[3], (Double) row[4]);
+        }
+        store.flush();
+        logger.log(Level.INFO, "<{0}> Rebuilt reservation store with {1} bookings from the database",
+                new Object[]{company, rows.size()});
+        return store;
+    }
+
+    private static String fileName(String company) {
+        try {
+            return URLEncoder.encode(company, "UTF-8") + ".reservations";
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*************
+     * FOLLOWING *
+     *************/
+
+    /**
+     * Applies the given committed events to the stores of their companies.
+     */
+    public void apply(List<RentalEvent> events) {
+        if (DIRECTORY == null) {
+            return;
+        }
+        synchronized (backlogs) {
+            for (RentalEvent event : events) {
+                if (event.getKind() == RentalEvent.Kind.CAR_ADDED) {
+                    continue;
+                }
+                MappedReservationStore store = stores.get(event.getCompany());
+                if (store != null) {
+                    apply(store, event);
+                } else if (backlogs.containsKey(event.getCompany())) {
+                    backlogs.get(event.getCompany()).add(event);
+                } else {
+                    missed.add(event.getCompany());
+                }
+            }
+        }
+    }
+
+    private void apply(MappedReservationStore store, RentalEvent event) {
+        Reservation res = event.getReservation();
+        try {
+            switch (event.getKind()) {
+                case RESERVATION_CONFIRMED:
+                    store.add(event.getCarId(), event.getStartDay(), event.getEndDay(),
+                            res == null ? null : res.getCarRenter(), res == null ? 0 : res.getRentalPrice());
+                    break;
+                case RESERVATION_CANCELLED:
+                    store.remove(event.getCarId(), event.getStartDay(), event.getEndDay());
+                    break;
+                case RESERVATION_MOVED:
+                    store.remove(event.getPreviousCarId(), event.getStartDay(), event.getEndDay());
+                    store.add(event.getCarId(), event.getStartDay(), event.getEndDay(),
+                            res == null ? null : res.getCarRenter(), res == null ? 0 : res.getRentalPrice());
+                    break;
+                default:
+                    break;
+            }
+        } catch (IOException e) {
+            // left marked as not closed cleanly, so it is rebuilt when opened again
+            logger.log(Level.SEVERE, "<" + event.getCompany() + "> Cannot write reservation store, closing it", e);
+            stores.remove(event.getCompany());
+            missed.add(event.getCompany());
+        }
+    }
+
+    /**
+     * Drops the bookings that ended before the given date from every open
+     * store once the current transaction, which archives them, commits.
+     * Stores that are closed notice on opening that they hold more bookings
+     * than the database.
+     */
+    public void archiveOnCommit(Date date) {
+        if (DIRECTORY == null) {
+            return;
+        }
+        final int day = Days.toEpochDay(date);
+        transactions.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    for (Map.Entry<String, MappedReservationStore> entry : stores.entrySet()) {
+                        int removed = entry.getValue().removeEndedBefore(day);
+                        logger.log(Level.FINE, "<{0}> Dropped {1} archived bookings from the reservation store",
+                                new Object[]{entry.getKey(), removed});
+                    }
+                }
+            }
+        });
+    }
+
+    @PreDestroy
+    public void close() {
+        for (Map.Entry<String, MappedReservationStore> entry : stores.entrySet()) {
+            try {
+                entry.getValue().close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "<" + entry.getKey() + "> Cannot close reservation store", e);
+            }
+        }
+        stores.clear();
+    }
+}
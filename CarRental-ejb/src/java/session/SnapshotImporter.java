@@ -0,0 +1,141 @@
+package session;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import static javax.ejb.TransactionAttributeType.REQUIRES_NEW;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import rental.Car;
+import rental.CarRentalCompany;
+import rental.CarType;
+import rental.RentalEvent;
+import rental.ReservationChange;
+import rental.Reservation;
+import rental.ReservationException;
+import rental.SnapshotFormat;
+
+/**
+ * Restores the parts of a snapshot, each in a transaction of its own. Company
+ * sections are independent of each other and are restored in parallel.
+ */
+@Stateless
+public class SnapshotImporter {
+
+    private static final Logger logger = Logger.getLogger(SnapshotImporter.class.getName());
+
+    @PersistenceContext EntityManager em;
+
+    @EJB
+    private AvailabilityProjection availability;
+
+    @EJB
+    private ChangeFeed changes;
+
+    /**
+     * Creates the car types that do not exist yet, before any company that
+     * uses them is restored.
+     */
+    @TransactionAttribute(REQUIRES_NEW)
+    public void importTypes(List<CarType> types) {
+        for (CarType type : types) {
+            if (em.find(CarType.class, type.getName()) == null) {
+                em.persist(type);
+            }
+        }
+    }
+
+    /**
+     * @return the number of reservations restored
+     */
+    @Asynchronous
+    public Future<Integer> importCompany(byte[] section) {
+        Map<String, CarType> types = new HashMap<String, CarType>();
+        for (CarType type : em.createQuery(
+                "SELECT t "
+              + "FROM CarType t", CarType.class).getResultList()) {
+            types.put(type.getName(), type);
+        }
+        CarRentalCompany company;
+        try {
+            company = SnapshotFormat.decodeCompany(section, types);
+        } catch (IOException e) {
+            throw new EJBException("Corrupt company section", e);
+        }
+        if (em.find(CarRentalCompany.class, company.getName()) != null) {
+            throw new IllegalStateException("<" + company.getName() + "> Company exists already");
+        }
+        em.persist(company);
+
+        int reservations = 0;
+        for (Car car : company.getAllCars()) {
+            reservations += car.getNbReservationsInHistory();
+        }
+        logger.log(Level.INFO, "<{0}> Restored {1} cars and {2} reservations",
+                new Object[]{company.getName(), company.getAllCars().size(), reservations});
+        return new AsyncResult<Integer>(reservations);
+    }
+
+    /**
+     * Applies the changes of an incremental snapshot in order. Changes that
+     * are already reflected are skipped, so overlapping snapshots are safe.
+     *
+     * @return the number of changes applied
+     */
+    @TransactionAttribute(REQUIRES_NEW)
+    public int applyChanges(List<SnapshotFormat.Change> batch) {
+        Map<String, CarRentalCompany> companies = new HashMap<String, CarRentalCompany>();
+        int applied = 0;
+        for (SnapshotFormat.Change change : batch) {
+            Reservation res = change.getReservation();
+            CarRentalCompany company = companies.get(res.getRentalCompany());
+            if (company == null) {
+                company = em.find(CarRentalCompany.class, res.getRentalCompany());
+                if (company == null) {
+                    throw new IllegalStateException("<" + res.getRentalCompany() + "> No such car rental company");
+                }
+                companies.put(res.getRentalCompany(), company);
+            }
+            if (change.getType() == ReservationChange.Type.CANCELLED) {
+                Reservation existing = company.findReservation(res);
+                if (existing != null) {
+                    company.cancelReservation(existing);
+                    em.remove(existing);
+                    applied++;
+                }
+            } else if (change.getType() == ReservationChange.Type.MOVED) {
+                Reservation moved = res.copy();
+                moved.setCarId(change.getPreviousCarId());
+                Reservation existing = company.findReservation(moved);
+                if (existing != null) {
+                    company.moveReservation(existing, res.getCarId());
+                    applied++;
+                }
+            } else {
+                try {
+                    if (company.restoreReservation(res)) {
+                        applied++;
+                    }
+                } catch (ReservationException e) {
+                    throw new EJBException(e);
+                }
+            }
+        }
+        for (CarRentalCompany company : companies.values()) {
+            List<RentalEvent> events = company.drainEvents();
+            changes.record(events);
+            availability.publishOnCommit(events);
+        }
+        return applied;
+    }
+}
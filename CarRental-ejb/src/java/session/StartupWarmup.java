@@ -0,0 +1,177 @@
+package session;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
+import javax.ejb.ConcurrencyManagement;
+import static javax.ejb.ConcurrencyManagementType.BEAN;
+import javax.ejb.EJB;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import static javax.ejb.TransactionAttributeType.NOT_SUPPORTED;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import rental.CarRentalCompany;
+import rental.CarType;
+import rental.Days;
+import rental.ReservationConstraints;
+import rental.ReservationException;
+
+/**
+ * Gets the application ready for traffic right after deployment: loads the
+ * fleet and current reservations of all companies into the availability
+ * projection in parallel, then runs a synthetic search and quote workload so
+ * the hot code paths are compiled before the first customers arrive. The
+ * workload runs in batches of {@code rental.warmup.batchSize} searches, each
+ * in a transaction of its own, with the per-quote logging of the companies
+ * turned down. The instance reports ready once both steps have succeeded; if
+ * either fails, it reports the failure instead.
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(BEAN)
+public class StartupWarmup {
+
+    private static final Logger logger = Logger.getLogger(StartupWarmup.class.getName());
+
+    private static final int WARMUP_ITERATIONS = Integer.getInteger("rental.warmup.iterations", 2000);
+    private static final int WARMUP_BATCH_SIZE = Integer.getInteger("rental.warmup.batchSize", 100);
+
+    @Resource
+    private SessionContext context;
+
+    @PersistenceContext EntityManager em;
+
+    @EJB
+    private AvailabilityProjection availability;
+
+    @EJB
+    private ReservationStores stores;
+
+    private final long deployedAt = System.currentTimeMillis();
+    private volatile boolean ready;
+    private volatile long startupTimeMillis = -1;
+    private volatile String failure;
+
+    @PostConstruct
+    public void start() {
+        context.getBusinessObject(StartupWarmup.class).warmUp();
+    }
+
+    @Asynchronous
+    @TransactionAttribute(NOT_SUPPORTED)
+    public void warmUp() {
+        try {
+            List<String> companies = em.createQuery(
+                    "SELECT c.name "
+                  + "FROM CarRentalCompany c", String.class).getResultList();
+            preload(companies);
+            exercise(companies);
+        } catch (Exception e) {
+            failure = String.valueOf(e);
+            logger.log(Level.SEVERE, "Warm-up failed, not ready", e);
+            return;
+        }
+        startupTimeMillis = System.currentTimeMillis() - deployedAt;
+        ready = true;
+        logger.log(Level.INFO, "Ready after {0} ms", startupTimeMillis);
+    }
+
+    private void preload(List<String> companies) throws Exception {
+        long start = System.currentTimeMillis();
+        List<Future<Integer>> loads = new ArrayList<Future<Integer>>();
+        for (String company : companies) {
+            loads.add(availability.preload(company));
+        }
+        int cars = 0;
+        for (Future<Integer> load : loads) {
+            cars += load.get();
+        }
+        if (stores.isEnabled()) {
+            for (String company : companies) {
+                stores.open(company);
+            }
+        }
+        logger.log(Level.INFO, "Preloaded {0} cars of {1} companies in {2} ms",
+                new Object[]{cars, companies.size(), System.currentTimeMillis() - start});
+    }
+
+    private void exercise(List<String> companies) {
+        if (companies.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        StartupWarmup self = context.getBusinessObject(StartupWarmup.class);
+        // a line for every warm-up quote would flood the log on each deploy
+        Logger companyLogger = Logger.getLogger(CarRentalCompany.class.getName());
+        Level level = companyLogger.getLevel();
+        companyLogger.setLevel(Level.WARNING);
+        try {
+            for (int done = 0; done < WARMUP_ITERATIONS; done += WARMUP_BATCH_SIZE) {
+                self.exerciseBatch(companies, done, Math.min(WARMUP_BATCH_SIZE, WARMUP_ITERATIONS - done));
+            }
+        } finally {
+            companyLogger.setLevel(level);
+        }
+        logger.log(Level.INFO, "Ran {0} warm-up searches in {1} ms",
+                new Object[]{WARMUP_ITERATIONS, System.currentTimeMillis() - start});
+    }
+
+    /**
+     * Runs the given number of warm-up searches, starting at the given one,
+     * in a transaction of their own, so the entities they load are let go
+     * after every batch.
+     */
+    public void exerciseBatch(List<String> companies, int offset, int count) {
+        Random random = new Random(42 + offset);
+        int today = Days.toEpochDay(new Date());
+        for (int i = offset; i < offset + count; i++) {
+            String name = companies.get(i % companies.size());
+            int first = today + random.nextInt(90);
+            Date from = Days.toDate(first);
+            Date to = Days.toDate(first + 1 + random.nextInt(14));
+            for (CarType type : availability.getAvailableCarTypes(name, from, to)) {
+                try {
+                    // quotes are tentative and never stored, so this leaves no trace
+                    stores.attach(em.find(CarRentalCompany.class, name)).createQuote(
+                            new ReservationConstraints(from, to, type.getName()), "warm-up");
+                } catch (ReservationException e) {
+                    // availability changed in the meantime, irrelevant here
+                }
+                break;
+            }
+        }
+    }
+
+    /***********
+     * METRICS *
+     ***********/
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return the time between deployment and readiness, or -1 while warming
+     *         up or if warm-up failed
+     */
+    public long getStartupTimeMillis() {
+        return startupTimeMillis;
+    }
+
+    /**
+     * @return why warm-up failed, or null if it has not
+     */
+    public String getStartupFailure() {
+        return failure;
+    }
+}
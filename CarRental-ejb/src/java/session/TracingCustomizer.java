@@ -0,0 +1,24 @@
+package session;
+
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.SessionProfiler;
+
+/**
+ * Installs the EclipseLink profiler named by the {@code rental.trace.profiler}
+ * system property, normally {@link TracingProfiler}, when the persistence unit
+ * is deployed. Without that property the unit runs without a profiler and
+ * {@link RequestTracing} lets calls through untraced.
+ */
+public class TracingCustomizer implements SessionCustomizer {
+
+    @Override
+    public void customize(Session session) throws Exception {
+        String profiler = System.getProperty("rental.trace.profiler");
+        if (profiler == null || profiler.isEmpty()) {
+            return;
+        }
+        session.setProfiler((SessionProfiler) Class.forName(profiler, true,
+                TracingCustomizer.class.getClassLoader()).newInstance());
+    }
+}
@@ -0,0 +1,73 @@
+package session;
+
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.sessions.SessionProfiler;
+import org.eclipse.persistence.sessions.SessionProfilerAdapter;
+
+/**
+ * EclipseLink profiler that records the statements executed and entities
+ * built on behalf of a traced session bean call in its {@link RequestTrace}.
+ * Work outside a traced call costs a thread-local lookup. It is only
+ * installed when {@link TracingCustomizer} is told to.
+ */
+public class TracingProfiler extends SessionProfilerAdapter {
+
+    private static volatile boolean installed;
+
+    public TracingProfiler() {
+        installed = true;
+    }
+
+    /**
+     * @return whether a tracing profiler was installed in the persistence
+     *         unit, without which there is nothing to trace
+     */
+    public static boolean isInstalled() {
+        return installed;
+    }
+
+    @Override
+    public void startOperationProfile(String operation, DatabaseQuery query, int weight) {
+        // every statement is prepared once, while closing one is reported as
+        // executing it again, so statements are counted when prepared
+        if (SessionProfiler.SqlPrepare.equals(operation)) {
+            statementExecuted(query);
+        }
+        RequestTrace trace = RequestTrace.current();
+        if (trace == null) {
+            return;
+        }
+        if (SessionProfiler.StatementExecute.equals(operation)) {
+            trace.enter();
+        } else if (SessionProfiler.ObjectBuilding.equals(operation)) {
+            trace.load(query == null ? "?" : query.getReferenceClassName());
+            trace.enter();
+        }
+    }
+
+    @Override
+    public void endOperationProfile(String operation, DatabaseQuery query, int weight) {
+        RequestTrace trace = RequestTrace.current();
+        if (trace != null && (SessionProfiler.StatementExecute.equals(operation)
+                || SessionProfiler.ObjectBuilding.equals(operation))) {
+            trace.exit();
+        }
+    }
+
+    /**
+     * Called once for every statement prepared for the database; a JDBC batch
+     * of writes may count once.
+     */
+    protected void statementExecuted(DatabaseQuery query) {
+        RequestTrace trace = RequestTrace.current();
+        if (trace != null) {
+            trace.statement(query == null || query.getSQLString() == null
+                    ? String.valueOf(query) : query.getSQLString());
+        }
+    }
+
+    @Override
+    public int getProfileWeight() {
+        return SessionProfiler.ALL;
+    }
+}
@@ -0,0 +1,46 @@
+package session;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import static javax.ejb.ConcurrencyManagementType.BEAN;
+import javax.ejb.Singleton;
+import rental.Car;
+import rental.UtilisationReport;
+import rental.UtilisationTask;
+
+/**
+ * Owns the fork-join pool utilisation reports are computed in. All reports
+ * share it, and it has at most {@code rental.utilisation.parallelism} workers,
+ * so concurrent reports queue up for the same threads instead of starting
+ * their own. The pool is shut down with the application.
+ */
+@Singleton
+@ConcurrencyManagement(BEAN)
+public class UtilisationPool {
+
+    private static final int PARALLELISM = Integer.getInteger("rental.utilisation.parallelism",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    private ForkJoinPool pool;
+
+    @PostConstruct
+    public void open() {
+        pool = new ForkJoinPool(PARALLELISM);
+    }
+
+    @PreDestroy
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * @see UtilisationTask#report(String, List, Date, Date, ForkJoinPool)
+     */
+    public UtilisationReport report(String company, List<Car> cars, Date start, Date end) {
+        return UtilisationTask.report(company, cars, start, end, pool);
+    }
+}
@@ -0,0 +1,315 @@
+package session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
+import javax.ejb.ConcurrencyManagement;
+import static javax.ejb.ConcurrencyManagementType.BEAN;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import rental.CarRentalCompany;
+import rental.Days;
+import rental.Quote;
+import rental.RentalEvent;
+import rental.ReservationConstraints;
+import rental.ReservationException;
+
+/**
+ * Constraints that could not be met, waiting for a cancellation to free a
+ * car. Waiters are indexed by company, car type and start day; when a
+ * cancellation commits, the oldest waiter of that type whose period overlaps
+ * the freed one and can now be quoted gets the quote, which its session picks
+ * up with a blocking call instead of retrying {@code createQuote}.
+ *
+ * A quote does not hold the car, so each cancellation is offered to a single
+ * waiter. Waiters that are not served within {@code rental.waitlist.ttlMillis}
+ * are dropped.
+ */
+@Singleton
+@ConcurrencyManagement(BEAN)
+public class Waitlist {
+
+    private static final Logger logger = Logger.getLogger(Waitlist.class.getName());
+
+    private static final long TTL_MILLIS = Long.getLong("rental.waitlist.ttlMillis", 24 * 60 * 60 * 1000L);
+    private static final long MAX_WAIT_MILLIS = Long.getLong("rental.waitlist.maxWaitMillis", 30000L);
+
+    @Resource
+    private SessionContext context;
+
+    @Resource
+    private TransactionSynchronizationRegistry transactions;
+
+    @PersistenceContext EntityManager em;
+
+    @EJB
+    private JournalWriter journal;
+
+    @EJB
+    private AvailabilityProjection availability;
+
+    @EJB
+    private ReservationStores stores;
+
+    // waiters by ticket, guarded by this
+    private final Map<Long, Waiter> waiters = new HashMap<Long, Waiter>();
+    // unserved waiters by company and car type, then by start day, guarded by this
+    private final Map<List<String>, TreeMap<Integer, List<Waiter>>> index = new HashMap<List<String>, TreeMap<Integer, List<Waiter>>>();
+    // the longest period any waiter asked for, bounding the index scan, guarded by this
+    private int longestDays;
+    private long nextTicket = 1;
+    private final Queue<RentalEvent> freed = new ConcurrentLinkedQueue<RentalEvent>();
+
+    /***********
+     * WAITING *
+     ***********/
+
+    /**
+     * Puts the given constraints on the waitlist of the given company.
+     *
+     * @return the ticket to wait on
+     */
+    public long join(String renter, String company, ReservationConstraints constraints) {
+        CarRentalCompany crc = em.find(CarRentalCompany.class, company);
+        if (crc == null) {
+            throw new IllegalArgumentException("<" + company + "> No such car rental company");
+        }
+        crc.getType(constraints.getCarType());
+        Waiter waiter = new Waiter(renter, company, constraints);
+        synchronized (this) {
+            waiter.ticket = nextTicket++;
+            waiters.put(waiter.ticket, waiter);
+            index(waiter);
+            longestDays = Math.max(longestDays, waiter.endDay - waiter.startDay);
+        }
+        logger.log(Level.INFO, "<{0}> {1} waits for {2}", new Object[]{company, renter, constraints});
+        return waiter.ticket;
+    }
+
+    /**
+     * Waits up to the given time for the given ticket to be served.
+     *
+     * @return the quote the ticket was served with, which ends the wait, or
+     *         null if it has not been served yet
+     */
+    public synchronized Quote await(String renter, long ticket, long waitMillis) {
+        Waiter waiter = getWaiter(renter, ticket);
+        long deadline = System.currentTimeMillis() + Math.min(waitMillis, MAX_WAIT_MILLIS);
+        while (waiter.quote == null) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return null;
+            }
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        waiters.remove(ticket);
+        return waiter.quote;
+    }
+
+    public synchronized void leave(String renter, long ticket) {
+        Waiter waiter = getWaiter(renter, ticket);
+        waiters.remove(ticket);
+        unindex(waiter);
+    }
+
+    private Waiter getWaiter(String renter, long ticket) {
+        Waiter waiter = waiters.get(ticket);
+        if (waiter == null || !waiter.renter.equals(renter)) {
+            throw new IllegalArgumentException("<" + ticket + "> No such waitlist ticket");
+        }
+        return waiter;
+    }
+
+    /************
+     * MATCHING *
+     ************/
+
+    /**
+     * Offers the cars freed by the cancellations among the given events to
+     * the waitlist as soon as the current transaction commits.
+     */
+    public void offerOnCommit(List<RentalEvent> events) {
+        final List<RentalEvent> cancellations = new ArrayList<RentalEvent>();
+        for (RentalEvent event : events) {
+            if (event.getKind() == RentalEvent.Kind.RESERVATION_CANCELLED) {
+                cancellations.add(event);
+            }
+        }
+        if (cancellations.isEmpty()) {
+            return;
+        }
+        transactions.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    freed.addAll(cancellations);
+                    context.getBusinessObject(Waitlist.class).match();
+                }
+            }
+        });
+    }
+
+    @Asynchronous
+    public void match() {
+        RentalEvent event;
+        while ((event = freed.poll()) != null) {
+            for (Waiter waiter : getCandidates(event)) {
+                Quote quote;
+                try {
+                    quote = journal.attach(availability.attach(
+                            stores.attach(em.find(CarRentalCompany.class, waiter.company))))
+                            .createQuote(waiter.constraints, waiter.renter);
+                } catch (ReservationException e) {
+                    continue;
+                }
+                if (serve(waiter, quote)) {
+                    logger.log(Level.INFO, "<{0}> Quoted waitlist ticket {1} for {2}",
+                            new Object[]{waiter.company, waiter.ticket, waiter.renter});
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the unserved waiters for the car type of the given event whose
+     *         period overlaps the event's, oldest first
+     */
+    private synchronized List<Waiter> getCandidates(RentalEvent event) {
+        List<Waiter> out = new ArrayList<Waiter>();
+        TreeMap<Integer, List<Waiter>> byStart = index.get(key(event.getCompany(), event.getCarType().getName()));
+        if (byStart == null) {
+            return out;
+        }
+        long now = System.currentTimeMillis();
+        for (List<Waiter> starting : byStart.subMap(event.getStartDay() - longestDays, true, event.getEndDay(), true).values()) {
+            for (Waiter waiter : starting) {
+                if (waiter.endDay >= event.getStartDay() && waiter.expiresAt > now) {
+                    out.add(waiter);
+                }
+            }
+        }
+        Collections.sort(out, new Comparator<Waiter>() {
+            @Override
+            public int compare(Waiter a, Waiter b) {
+                return a.ticket < b.ticket ? -1 : (a.ticket == b.ticket ? 0 : 1);
+            }
+        });
+        return out;
+    }
+
+    private synchronized boolean serve(Waiter waiter, Quote quote) {
+        if (waiters.get(waiter.ticket) != waiter || waiter.quote != null) {
+            // left the waitlist in the meantime
+            return false;
+        }
+        waiter.quote = quote;
+        unindex(waiter);
+        notifyAll();
+        return true;
+    }
+
+    @Schedule(minute = "*/5", hour = "*", persistent = false)
+    public synchronized void dropExpired() {
+        long now = System.currentTimeMillis();
+        int dropped = 0;
+        for (Iterator<Waiter> it = waiters.values().iterator(); it.hasNext();) {
+            Waiter waiter = it.next();
+            if (waiter.expiresAt <= now) {
+                it.remove();
+                unindex(waiter);
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            logger.log(Level.INFO, "Dropped {0} expired waitlist tickets", dropped);
+        }
+    }
+
+    /*********
+     * INDEX *
+     *********/
+
+    private void index(Waiter waiter) {
+        List<String> key = key(waiter.company, waiter.constraints.getCarType());
+        TreeMap<Integer, List<Waiter>> byStart = index.get(key);
+        if (byStart == null) {
+            byStart = new TreeMap<Integer, List<Waiter>>();
+            index.put(key, byStart);
+        }
+        List<Waiter> starting = byStart.get(waiter.startDay);
+        if (starting == null) {
+            starting = new ArrayList<Waiter>();
+            byStart.put(waiter.startDay, starting);
+        }
+        starting.add(waiter);
+    }
+
+    private void unindex(Waiter waiter) {
+        List<String> key = key(waiter.company, waiter.constraints.getCarType());
+        TreeMap<Integer, List<Waiter>> byStart = index.get(key);
+        if (byStart == null) {
+            return;
+        }
+        List<Waiter> starting = byStart.get(waiter.startDay);
+        if (starting != null && starting.remove(waiter) && starting.isEmpty()) {
+            byStart.remove(waiter.startDay);
+            if (byStart.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static List<String> key(String company, String carType) {
+        return Arrays.asList(company, carType);
+    }
+
+    private static class Waiter {
+
+        private long ticket;
+        private final String renter;
+        private final String company;
+        private final ReservationConstraints constraints;
+        private final int startDay;
+        private final int endDay;
+        private final long expiresAt;
+        private Quote quote;
+
+        Waiter(String renter, String company, ReservationConstraints constraints) {
+            this.renter = renter;
+            this.company = company;
+            this.constraints = constraints;
+            this.startDay = Days.toEpochDay(constraints.getStartDate());
+            this.endDay = Days.toEpochDay(constraints.getEndDate());
+            this.expiresAt = System.currentTimeMillis() + TTL_MILLIS;
+        }
+    }
+}
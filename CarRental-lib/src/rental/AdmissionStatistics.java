@@ -0,0 +1,66 @@
+package rental;
+
+import java.io.Serializable;
+
+public class AdmissionStatistics implements Serializable {
+
+    private String rentalCompany;
+    private long admitted;
+    private long rejected;
+    private int inFlight;
+    private int queued;
+    private double meanQueueMillis;
+    private double maxQueueMillis;
+
+    /***************
+     * CONSTRUCTOR *
+     ***************/
+
+    public AdmissionStatistics(String rentalCompany, long admitted, long rejected, int inFlight, int queued, double meanQueueMillis, double maxQueueMillis) {
+        this.rentalCompany = rentalCompany;
+        this.admitted = admitted;
+        this.rejected = rejected;
+        this.inFlight = inFlight;
+        this.queued = queued;
+        this.meanQueueMillis = meanQueueMillis;
+        this.maxQueueMillis = maxQueueMillis;
+    }
+
+    public String getRentalCompany() {
+        return rentalCompany;
+    }
+
+    public long getAdmitted() {
+        return admitted;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    public double getMeanQueueMillis() {
+        return meanQueueMillis;
+    }
+
+    public double getMaxQueueMillis() {
+        return maxQueueMillis;
+    }
+
+    /*************
+     * TO STRING *
+     *************/
+
+    @Override
+    public String toString() {
+        return String.format("Admission at %s [admitted: %d, rejected: %d, in flight: %d, queued: %d, queue time: mean %.2f ms, max %.2f ms]", 
+                getRentalCompany(), getAdmitted(), getRejected(), getInFlight(), getQueued(), getMeanQueueMillis(), getMaxQueueMillis());
+    }
+}
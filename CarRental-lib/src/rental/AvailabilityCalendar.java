@@ -0,0 +1,71 @@
+package rental;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Number of free cars of one car type at one company for every day of a
+ * period, both bounds included.
+ */
+public class AvailabilityCalendar implements Serializable {
+
+    private String rentalCompany;
+    private String carType;
+    private int firstDay;
+    private int[] freeCars;
+
+    /***************
+     * CONSTRUCTOR *
+     ***************/
+
+    public AvailabilityCalendar(String rentalCompany, String carType, int firstDay, int[] freeCars) {
+        this.rentalCompany = rentalCompany;
+        this.carType = carType;
+        this.firstDay = firstDay;
+        this.freeCars = freeCars;
+    }
+
+    public String getRentalCompany() {
+        return rentalCompany;
+    }
+
+    public String getCarType() {
+        return carType;
+    }
+
+    public Date getStartDate() {
+        return Days.toDate(firstDay);
+    }
+
+    public Date getEndDate() {
+        return Days.toDate(firstDay + freeCars.length - 1);
+    }
+
+    public int getNbOfDays() {
+        return freeCars.length;
+    }
+
+    public int getFreeCars(Date day) {
+        int index = Days.toEpochDay(day) - firstDay;
+        if (index < 0 || index >= freeCars.length)
+            throw new IllegalArgumentException("Day outside of the calendar: " + day);
+        return freeCars[index];
+    }
+
+    /**
+     * @return the number of free cars per day, starting at the start date
+     */
+    public int[] getFreeCarsPerDay() {
+        return freeCars.clone();
+    }
+
+    /*************
+     * TO STRING *
+     *************/
+
+    @Override
+    public String toString() {
+        return String.format("Availability of %s at %s from %s to %s", 
+                getCarType(), getRentalCompany(), getStartDate(), getEndDate());
+    }
+}
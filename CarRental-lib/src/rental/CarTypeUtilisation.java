@@ -0,0 +1,73 @@
+package rental;
+
+import java.io.Serializable;
+
+public class CarTypeUtilisation implements Serializable {
+
+    private String carType;
+    private int nbOfCars;
+    private long bookedCarDays;
+    private long availableCarDays;
+    private double revenue;
+    private int peakConcurrency;
+
+    /***************
+     * CONSTRUCTOR *
+     ***************/
+
+    public CarTypeUtilisation(String carType, int nbOfCars, long bookedCarDays, long availableCarDays, double revenue, int peakConcurrency) {
+        this.carType = carType;
+        this.nbOfCars = nbOfCars;
+        this.bookedCarDays = bookedCarDays;
+        this.availableCarDays = availableCarDays;
+        this.revenue = revenue;
+        this.peakConcurrency = peakConcurrency;
+    }
+
+    public String getCarType() {
+        return carType;
+    }
+
+    public int getNbOfCars() {
+        return nbOfCars;
+    }
+
+    public long getBookedCarDays() {
+        return bookedCarDays;
+    }
+
+    public long getAvailableCarDays() {
+        return availableCarDays;
+    }
+
+    /**
+     * @return booked car-days divided by available car-days
+     */
+    public double getUtilisation() {
+        return availableCarDays == 0 ? 0 : (double) bookedCarDays / availableCarDays;
+    }
+
+    /**
+     * @return the summed price of the reservations of this type that start in the period
+     */
+    public double getRevenue() {
+        return revenue;
+    }
+
+    /**
+     * @return the highest number of cars of this type booked on a single day
+     */
+    public int getPeakConcurrency() {
+        return peakConcurrency;
+    }
+
+    /*************
+     * TO STRING *
+     *************/
+
+    @Override
+    public String toString() {
+        return String.format("%s \t[cars: %d, utilisation: %.1f%%, revenue: %.2f, peak: %d]", 
+                getCarType(), getNbOfCars(), getUtilisation() * 100, getRevenue(), getPeakConcurrency());
+    }
+}
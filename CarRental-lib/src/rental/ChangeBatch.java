@@ -0,0 +1,35 @@
+package rental;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A batch of the reservation change feed, in order. Pass the next cursor to
+ * the following request to resume right after this batch.
+ */
+public class ChangeBatch implements Serializable {
+
+    private List<ReservationChange> changes;
+    private long nextCursor;
+
+    /***************
+     * CONSTRUCTOR *
+     ***************/
+
+    public ChangeBatch(List<ReservationChange> changes, long nextCursor) {
+        this.changes = changes;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<ReservationChange> getChanges() {
+        return changes;
+    }
+
+    public long getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+}
@@ -0,0 +1,15 @@
+package rental;
+
+import java.util.Date;
+
+/**
+ * Charges the daily price of the car type for every started day.
+ */
+public class DailyRatePricing implements PricingStrategy {
+
+    @Override
+    public double getRentalPrice(CarType type, Date start, Date end) {
+        return type.getRentalPricePerDay() * Math.ceil((end.getTime() - start.getTime())
+                / (1000 * 60 * 60 * 24D));
+    }
+}
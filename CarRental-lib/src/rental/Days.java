@@ -0,0 +1,31 @@
+package rental;
+
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Conversions between dates and epoch days (days since 1/1/1970 in the
+ * default time zone). Reservation periods are stored as dates without time,
+ * so every date maps onto exactly one day.
+ */
+public final class Days {
+
+    public static final long MILLIS_PER_DAY = 1000L * 60 * 60 * 24;
+
+    private Days() {
+    }
+
+    public static int toEpochDay(Date date) {
+        long local = date.getTime() + TimeZone.getDefault().getOffset(date.getTime());
+        long day = local / MILLIS_PER_DAY;
+        if (local < 0 && local % MILLIS_PER_DAY != 0) {
+            day--;
+        }
+        return (int) day;
+    }
+
+    public static Date toDate(int epochDay) {
+        long utc = epochDay * MILLIS_PER_DAY;
+        return new Date(utc - TimeZone.getDefault().getOffset(utc - TimeZone.getDefault().getRawOffset()));
+    }
+}
@@ -0,0 +1,14 @@
+package rental;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Computes the price of renting a car of a given type for a period. A car
+ * rental company holds one strategy, which can be replaced at any time
+ * without affecting how quotes are created.
+ */
+public interface PricingStrategy extends Serializable {
+
+    public double getRentalPrice(CarType type, Date start, Date end);
+}
@@ -57,6 +57,12 @@ public class Quote implements Serializable {
     public String getCarType() {
 	return carType;
     }
+
+    protected void setPeriod(Date start, Date end, double rentalPrice) {
+        this.startDate = start;
+        this.endDate = end;
+        this.rentalPrice = rentalPrice;
+    }
     
     /*************
      * TO STRING *
@@ -0,0 +1,35 @@
+package rental;
+
+import java.io.Serializable;
+
+public class QuoteRequest implements Serializable {
+
+    private String rentalCompany;
+    private ReservationConstraints constraints;
+
+    /***************
+     * CONSTRUCTOR *
+     ***************/
+
+    public QuoteRequest(String rentalCompany, ReservationConstraints constraints) {
+        this.rentalCompany = rentalCompany;
+        this.constraints = constraints;
+    }
+
+    public String getRentalCompany() {
+        return rentalCompany;
+    }
+
+    public ReservationConstraints getConstraints() {
+        return constraints;
+    }
+
+    /*************
+     * TO STRING *
+     *************/
+
+    @Override
+    public String toString() {
+        return String.format("Quote request at %s: %s", getRentalCompany(), getConstraints());
+    }
+}
@@ -0,0 +1,57 @@
+package rental;
+
+import java.io.Serializable;
+
+/**
+ * Outcome of one item of a batched quote request: either the quote that was
+ * created, or the reason why none could be made.
+ */
+public class QuoteResult implements Serializable {
+
+    private QuoteRequest request;
+    private Quote quote;
+    private String failure;
+
+    /***************
+     * CONSTRUCTOR *
+     ***************/
+
+    private QuoteResult(QuoteRequest request, Quote quote, String failure) {
+        this.request = request;
+        this.quote = quote;
+        this.failure = failure;
+    }
+
+    public static QuoteResult success(QuoteRequest request, Quote quote) {
+        return new QuoteResult(request, quote, null);
+    }
+
+    public static QuoteResult failure(QuoteRequest request, String failure) {
+        return new QuoteResult(request, null, failure);
+    }
+
+    public QuoteRequest getRequest() {
+        return request;
+    }
+
+    public boolean isSuccessful() {
+        return quote != null;
+    }
+
+    public Quote getQuote() {
+        return quote;
+    }
+
+    public String getFailure() {
+        return failure;
+    }
+
+    /*************
+     * TO STRING *
+     *************/
+
+    @Override
+    public String toString() {
+        return isSuccessful() ? getQuote().toString() : String.format("%s failed: %s", getRequest(), getFailure());
+    }
+}
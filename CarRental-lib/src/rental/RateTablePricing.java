@@ -0,0 +1,228 @@
+package rental;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pricing based on seasonal and length-of-rental rate tables.
+ *
+ * The daily price of a car type is multiplied by the factors of all seasons
+ * that cover a day, and the total by the factor of the longest rental length
+ * tier the period reaches. Both tables are kept per car type, next to a table
+ * for all types; where both apply, their factors multiply. Seasonal factors
+ * are precomputed per car type into prefix sums indexed by epoch day, so
+ * pricing a period costs two array lookups regardless of its length. Days
+ * outside the table are charged at the plain daily price.
+ *
+ * Companies keep their strategy in a serialized column, so the serialized
+ * form is written by hand and does not follow the fields.
+ */
+public class RateTablePricing implements PricingStrategy {
+
+    private static final long serialVersionUID = 1L;
+    // version of the form written by writeObject
+    private static final int SERIAL_FORM = 1;
+
+    private transient int firstDay;
+    private transient int lastDay;
+    private transient List<Season> seasons = new ArrayList<Season>();
+    // length-of-rental tiers by car type, null for all types
+    private transient Map<String, TreeMap<Integer, Double>> lengthFactors = new HashMap<String, TreeMap<Integer, Double>>();
+    private transient Map<String, double[]> prefixSums;
+
+    /***************
+     * CONSTRUCTOR *
+     ***************/
+
+    /**
+     * @param from first day covered by the rate table
+     * @param until first day no longer covered by the rate table
+     */
+    public RateTablePricing(Date from, Date until) {
+        this.firstDay = Days.toEpochDay(from);
+        this.lastDay = Days.toEpochDay(until);
+        if (lastDay <= firstDay)
+            throw new IllegalArgumentException("Illegal given period");
+    }
+
+    /**
+     * Multiplies the daily price from {@code from} until (excluding)
+     * {@code until} by {@code factor}.
+     *
+     * @param carType name of the car type the season applies to, or null for all types
+     */
+    public synchronized RateTablePricing addSeason(String carType, Date from, Date until, double factor) {
+        seasons.add(new Season(carType, Days.toEpochDay(from), Days.toEpochDay(until), factor));
+        prefixSums = null;
+        return this;
+    }
+
+    /**
+     * Multiplies the price of rentals of at least {@code minDays} days by
+     * {@code factor}.
+     *
+     * @param carType name of the car type the tier applies to, or null for all types
+     */
+    public synchronized RateTablePricing addLengthFactor(String carType, int minDays, double factor) {
+        TreeMap<Integer, Double> tiers = lengthFactors.get(carType);
+        if (tiers == null) {
+            tiers = new TreeMap<Integer, Double>();
+            lengthFactors.put(carType, tiers);
+        }
+        tiers.put(minDays, factor);
+        return this;
+    }
+
+    /***********
+     * PRICING *
+     ***********/
+
+    @Override
+    public double getRentalPrice(CarType type, Date start, Date end) {
+        int startDay = Days.toEpochDay(start);
+        int endDay = Days.toEpochDay(end);
+        int days = endDay - startDay;
+        if (days <= 0) {
+            return 0;
+        }
+        double[] prefix = getPrefixSums(type.getName());
+        int from = clamp(startDay);
+        int until = clamp(endDay);
+        double factorDays = prefix[until - firstDay] - prefix[from - firstDay] + (days - (until - from));
+        return type.getRentalPricePerDay() * factorDays
+                * getLengthFactor(null, days) * getLengthFactor(type.getName(), days);
+    }
+
+    /************
+     * SNAPSHOT *
+     ************/
+
+    /**
+     * Writes the rate table field by field, so snapshots never need to
+     * deserialize objects.
+     */
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeInt(firstDay);
+        out.writeInt(lastDay);
+        out.writeInt(seasons.size());
+        for (Season season : seasons) {
+            writeCarType(out, season.carType);
+            out.writeInt(season.fromDay);
+            out.writeInt(season.untilDay);
+            out.writeDouble(season.factor);
+        }
+        out.writeInt(lengthFactors.size());
+        for (Map.Entry<String, TreeMap<Integer, Double>> tiers : lengthFactors.entrySet()) {
+            writeCarType(out, tiers.getKey());
+            out.writeInt(tiers.getValue().size());
+            for (Map.Entry<Integer, Double> tier : tiers.getValue().entrySet()) {
+                out.writeInt(tier.getKey());
+                out.writeDouble(tier.getValue());
+            }
+        }
+    }
+
+    public static RateTablePricing readFrom(DataInput in) throws IOException {
+        RateTablePricing out = new RateTablePricing(Days.toDate(in.readInt()), Days.toDate(in.readInt()));
+        for (int i = in.readInt(); i > 0; i--) {
+            out.seasons.add(new Season(readCarType(in), in.readInt(), in.readInt(), in.readDouble()));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            String carType = readCarType(in);
+            for (int j = in.readInt(); j > 0; j--) {
+                out.addLengthFactor(carType, in.readInt(), in.readDouble());
+            }
+        }
+        return out;
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(SERIAL_FORM);
+        writeTo(out);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int form = in.readInt();
+        if (form != SERIAL_FORM)
+            throw new InvalidObjectException("Unknown rate table form " + form);
+        RateTablePricing read = readFrom(in);
+        firstDay = read.firstDay;
+        lastDay = read.lastDay;
+        seasons = read.seasons;
+        lengthFactors = read.lengthFactors;
+    }
+
+    private static void writeCarType(DataOutput out, String carType) throws IOException {
+        out.writeBoolean(carType != null);
+        if (carType != null) {
+            out.writeUTF(carType);
+        }
+    }
+
+    private static String readCarType(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private int clamp(int day) {
+        return Math.min(Math.max(day, firstDay), lastDay);
+    }
+
+    private synchronized double getLengthFactor(String carType, int days) {
+        TreeMap<Integer, Double> tiers = lengthFactors.get(carType);
+        Map.Entry<Integer, Double> tier = tiers == null ? null : tiers.floorEntry(days);
+        return tier == null ? 1 : tier.getValue();
+    }
+
+    private synchronized double[] getPrefixSums(String carType) {
+        if (prefixSums == null) {
+            prefixSums = new HashMap<String, double[]>();
+        }
+        double[] prefix = prefixSums.get(carType);
+        if (prefix == null) {
+            double[] factors = new double[lastDay - firstDay];
+            Arrays.fill(factors, 1);
+            for (Season season : seasons) {
+                if (season.carType != null && !season.carType.equals(carType)) {
+                    continue;
+                }
+                for (int day = Math.max(season.fromDay, firstDay); day < Math.min(season.untilDay, lastDay); day++) {
+                    factors[day - firstDay] *= season.factor;
+                }
+            }
+            prefix = new double[factors.length + 1];
+            for (int i = 0; i < factors.length; i++) {
+                prefix[i + 1] = prefix[i] + factors[i];
+            }
+            prefixSums.put(carType, prefix);
+        }
+        return prefix;
+    }
+
+    private static class Season {
+
+        private final String carType;
+        private final int fromDay;
+        private final int untilDay;
+        private final double factor;
+
+        Season(String carType, int fromDay, int untilDay, double factor) {
+            this.carType = carType;
+            this.fromDay = fromDay;
+            this.untilDay = untilDay;
+            this.factor = factor;
+        }
+    }
+}
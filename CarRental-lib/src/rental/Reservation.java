@@ -1,12 +1,20 @@
 package rental;
 
 import java.io.Serializable;
+import java.util.Date;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import static javax.persistence.GenerationType.AUTO;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
 
 @Entity
+@Table(indexes = {
+    @Index(name = "RESERVATION_RENTER", columnList = "CARRENTER"),
+    @Index(name = "RESERVATION_COMPANY_TYPE", columnList = "RENTALCOMPANY, CARTYPE"),
+    @Index(name = "RESERVATION_PERIOD", columnList = "STARTDATE, ENDDATE")
+})
 public class Reservation extends Quote implements Serializable{
 
     private int carId;
@@ -34,6 +42,30 @@ public class Reservation extends Quote implements Serializable{
     public int getCarId() {
     	return carId;
     }
+
+    /**
+     * Hands the reservation to another car of the same type, which the
+     * company may do until the rental starts.
+     */
+    public void setCarId(int carId) {
+        this.carId = carId;
+    }
+
+    /**
+     * @return a detached copy of this reservation, with the same id
+     */
+    public Reservation copy() {
+        Reservation out = new Reservation(this, carId);
+        out.id = id;
+        return out;
+    }
+
+    /**
+     * Moves the reservation to another period at the given price.
+     */
+    public void reschedule(Date start, Date end, double rentalPrice) {
+        setPeriod(start, end, rentalPrice);
+    }
     
     /*************
      * TO STRING *
@@ -0,0 +1,136 @@
+package rental;
+
+import java.io.Serializable;
+import java.util.Date;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import static javax.persistence.GenerationType.AUTO;
+import javax.persistence.Id;
+import javax.persistence.Temporal;
+import static javax.persistence.TemporalType.DATE;
+import static javax.persistence.TemporalType.TIMESTAMP;
+
+/**
+ * Entry of the reservation change feed: a reservation that was created,
+ * cancelled or moved to another car of its type. Changes are written in the
+ * same transaction as the booking itself, and their ids serve as the cursor
+ * of the feed.
+ */
+@Entity
+public class ReservationChange implements Serializable {
+
+    public enum Type {
+        CREATED, CANCELLED, MOVED
+    }
+
+    @Id
+    @GeneratedValue(strategy = AUTO)
+    private long id;
+    @Enumerated(EnumType.STRING)
+    private Type type;
+    private int reservationId;
+    private String rentalCompany;
+    private String carType;
+    private int carId;
+    private int previousCarId;
+    private String carRenter;
+    @Temporal(DATE)
+    private Date startDate;
+    @Temporal(DATE)
+    private Date endDate;
+    private double rentalPrice;
+    @Temporal(TIMESTAMP)
+    private Date changedAt;
+
+    public ReservationChange() {
+    }
+
+    /***************
+     * CONSTRUCTOR *
+     ***************/
+
+    public ReservationChange(Type type, Reservation res) {
+        this(type, res, res.getCarId());
+    }
+
+    public ReservationChange(Type type, Reservation res, int previousCarId) {
+        this.type = type;
+        this.previousCarId = previousCarId;
+        this.reservationId = res.getId();
+        this.rentalCompany = res.getRentalCompany();
+        this.carType = res.getCarType();
+        this.carId = res.getCarId();
+        this.carRenter = res.getCarRenter();
+        this.startDate = res.getStartDate();
+        this.endDate = res.getEndDate();
+        this.rentalPrice = res.getRentalPrice();
+        this.changedAt = new Date();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the id of the reservation
+     */
+    public int getReservationId() {
+        return reservationId;
+    }
+
+    public String getRentalCompany() {
+        return rentalCompany;
+    }
+
+    public String getCarType() {
+        return carType;
+    }
+
+    public int getCarId() {
+        return carId;
+    }
+
+    /**
+     * @return the car a moved reservation was taken from; for other changes,
+     *         the car of the reservation
+     */
+    public int getPreviousCarId() {
+        return previousCarId;
+    }
+
+    public String getCarRenter() {
+        return carRenter;
+    }
+
+    public Date getStartDate() {
+        return startDate;
+    }
+
+    public Date getEndDate() {
+        return endDate;
+    }
+
+    public double getRentalPrice() {
+        return rentalPrice;
+    }
+
+    public Date getChangedAt() {
+        return changedAt;
+    }
+
+    /*************
+     * TO STRING *
+     *************/
+
+    @Override
+    public String toString() {
+        return String.format("#%d %s reservation %d for %s from %s to %s at %s\nCar type: %s\tCar: %s\nTotal price: %.2f",
+                id, type, reservationId, carRenter, startDate, endDate, rentalCompany, carType, carId, rentalPrice);
+    }
+}
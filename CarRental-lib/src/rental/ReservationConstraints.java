@@ -8,6 +8,11 @@ public class ReservationConstraints implements Serializable{
     private Date startDate;
     private Date endDate;
     private String carType;
+    // optional constraints on the attributes of the car type, null for any
+    private Integer minSeats;
+    private Float minTrunkSpace;
+    private Boolean smokingAllowed;
+    private Double maxPricePerDay;
 	
     /***************
      * CONSTRUCTOR *
@@ -18,6 +23,49 @@ public class ReservationConstraints implements Serializable{
     	setEndDate(end);
     	setCarType(carType);
     }
+
+    /**
+     * Constraints on the period only, to be narrowed down by the attributes
+     * of the car type. Each {@code with} method returns new constraints and
+     * leaves these as they are, such as
+     * {@code new ReservationConstraints(start, end).withMinSeats(7).withSmokingAllowed(false)}.
+     */
+    public ReservationConstraints(Date start, Date end){
+    	this(start, end, null);
+    }
+
+    private ReservationConstraints copy() {
+        ReservationConstraints out = new ReservationConstraints(startDate, endDate, carType);
+        out.minSeats = minSeats;
+        out.minTrunkSpace = minTrunkSpace;
+        out.smokingAllowed = smokingAllowed;
+        out.maxPricePerDay = maxPricePerDay;
+        return out;
+    }
+
+    public ReservationConstraints withMinSeats(int minSeats) {
+        ReservationConstraints out = copy();
+        out.minSeats = minSeats;
+        return out;
+    }
+
+    public ReservationConstraints withMinTrunkSpace(float minTrunkSpace) {
+        ReservationConstraints out = copy();
+        out.minTrunkSpace = minTrunkSpace;
+        return out;
+    }
+
+    public ReservationConstraints withSmokingAllowed(boolean smokingAllowed) {
+        ReservationConstraints out = copy();
+        out.smokingAllowed = smokingAllowed;
+        return out;
+    }
+
+    public ReservationConstraints withMaxPricePerDay(double maxPricePerDay) {
+        ReservationConstraints out = copy();
+        out.maxPricePerDay = maxPricePerDay;
+        return out;
+    }
     
     public Date getStartDate() {
 	return startDate;
@@ -42,6 +90,34 @@ public class ReservationConstraints implements Serializable{
     private void setCarType(String carType) {
 	this.carType = carType;
     }
+
+    public Integer getMinSeats() {
+        return minSeats;
+    }
+
+    public Float getMinTrunkSpace() {
+        return minTrunkSpace;
+    }
+
+    public Boolean getSmokingAllowed() {
+        return smokingAllowed;
+    }
+
+    public Double getMaxPricePerDay() {
+        return maxPricePerDay;
+    }
+
+    /**
+     * @return whether the given car type has the name and attributes these
+     *         constraints ask for
+     */
+    public boolean matches(CarType type) {
+        return (carType == null || carType.equals(type.getName()))
+                && (minSeats == null || type.getNbOfSeats() >= minSeats)
+                && (minTrunkSpace == null || type.getTrunkSpace() >= minTrunkSpace)
+                && (smokingAllowed == null || type.isSmokingAllowed() == smokingAllowed)
+                && (maxPricePerDay == null || type.getRentalPricePerDay() <= maxPricePerDay);
+    }
     
     /*************
      * TO STRING *
@@ -49,8 +125,10 @@ public class ReservationConstraints implements Serializable{
 
     @Override
     public String toString() {
-        return String.format("Reservation constraints [from %s until %s, for car type '%s']", 
-                getStartDate(), getEndDate(), getCarType());
+        return String.format("Reservation constraints [from %s until %s, for car type '%s'"
+                + ", seats >= %s, trunk >= %s, smoking %s, price per day <= %s]",
+                getStartDate(), getEndDate(), getCarType(),
+                getMinSeats(), getMinTrunkSpace(), getSmokingAllowed(), getMaxPricePerDay());
     }
 
     @Override
@@ -61,6 +139,10 @@ public class ReservationConstraints implements Serializable{
 	result = prime * result
 			+ ((startDate == null) ? 0 : startDate.hashCode());
 	result = prime * result + ((carType == null) ? 0 : carType.hashCode());
+	result = prime * result + ((minSeats == null) ? 0 : minSeats.hashCode());
+	result = prime * result + ((minTrunkSpace == null) ? 0 : minTrunkSpace.hashCode());
+	result = prime * result + ((smokingAllowed == null) ? 0 : smokingAllowed.hashCode());
+	result = prime * result + ((maxPricePerDay == null) ? 0 : maxPricePerDay.hashCode());
 	return result;
     }
 
@@ -88,6 +170,14 @@ public class ReservationConstraints implements Serializable{
 		return false;
 	} else if (!carType.equals(other.carType))
             return false;
+	if (minSeats == null ? other.minSeats != null : !minSeats.equals(other.minSeats))
+            return false;
+	if (minTrunkSpace == null ? other.minTrunkSpace != null : !minTrunkSpace.equals(other.minTrunkSpace))
+            return false;
+	if (smokingAllowed == null ? other.smokingAllowed != null : !smokingAllowed.equals(other.smokingAllowed))
+            return false;
+	if (maxPricePerDay == null ? other.maxPricePerDay != null : !maxPricePerDay.equals(other.maxPricePerDay))
+            return false;
 	return true;
     }   
 }
\ No newline at end of file
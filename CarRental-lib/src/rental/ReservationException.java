@@ -2,11 +2,29 @@ package rental;
 
 public class ReservationException extends Exception {
 
+    private boolean retryable;
+
     public ReservationException(String string) {
         super(string);
     }
     
+    public ReservationException(String string, boolean retryable) {
+        super(string);
+        this.retryable = retryable;
+    }
+    
     public ReservationException(Throwable t) {
         super(t);
+        if (t instanceof ReservationException) {
+            this.retryable = ((ReservationException) t).isRetryable();
+        }
+    }
+
+    /**
+     * @return whether the request was turned down because of a temporary
+     *         condition, such as overload, and may succeed when retried later
+     */
+    public boolean isRetryable() {
+        return retryable;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,59 @@
+package rental;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+public class UtilisationReport implements Serializable {
+
+    private String rentalCompany;
+    private Date startDate;
+    private Date endDate;
+    private Map<String, CarTypeUtilisation> carTypes;
+
+    /***************
+     * CONSTRUCTOR *
+     ***************/
+
+    public UtilisationReport(String rentalCompany, Date start, Date end, Map<String, CarTypeUtilisation> carTypes) {
+        this.rentalCompany = rentalCompany;
+        this.startDate = start;
+        this.endDate = end;
+        this.carTypes = carTypes;
+    }
+
+    public String getRentalCompany() {
+        return rentalCompany;
+    }
+
+    public Date getStartDate() {
+        return startDate;
+    }
+
+    public Date getEndDate() {
+        return endDate;
+    }
+
+    public Collection<CarTypeUtilisation> getCarTypes() {
+        return carTypes.values();
+    }
+
+    public CarTypeUtilisation getCarType(String carType) {
+        return carTypes.get(carType);
+    }
+
+    /*************
+     * TO STRING *
+     *************/
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(String.format("Utilisation of %s from %s to %s", 
+                getRentalCompany(), getStartDate(), getEndDate()));
+        for (CarTypeUtilisation type : getCarTypes()) {
+            out.append("\n\t").append(type);
+        }
+        return out.toString();
+    }
+}
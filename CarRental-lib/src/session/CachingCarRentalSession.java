@@ -0,0 +1,225 @@
+package session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import rental.AvailabilityCalendar;
+import rental.CarType;
+import rental.Quote;
+import rental.QuoteRequest;
+import rental.QuoteResult;
+import rental.Reservation;
+import rental.ReservationConstraints;
+import rental.ReservationException;
+
+/**
+ * Client-side decorator that caches the results of a reservation session.
+ * The company catalog is kept for a long time; search results only briefly,
+ * in a bounded cache. Confirming quotes drops all cached search results of
+ * this client, since they may no longer hold.
+ *
+ * Cached collections are handed out unmodifiable, since every hit shares
+ * them, and cache keys hold dates as epoch milliseconds, so a caller changing
+ * its arguments afterwards cannot corrupt the cache.
+ */
+public class CachingCarRentalSession implements CarRentalSessionRemote {
+
+    public static final long DEFAULT_CATALOG_TTL_MILLIS = 5 * 60 * 1000L;
+    public static final long DEFAULT_SEARCH_TTL_MILLIS = 2 * 1000L;
+    public static final int DEFAULT_MAX_SEARCHES = 1000;
+
+    private final CarRentalSessionRemote delegate;
+    private final ResultCache<List<Object>, Object> catalog;
+    private final ResultCache<List<Object>, Object> searches;
+
+    /***************
+     * CONSTRUCTOR *
+     ***************/
+
+    public CachingCarRentalSession(CarRentalSessionRemote delegate) {
+        this(delegate, DEFAULT_CATALOG_TTL_MILLIS, DEFAULT_SEARCH_TTL_MILLIS, DEFAULT_MAX_SEARCHES);
+    }
+
+    public CachingCarRentalSession(CarRentalSessionRemote delegate, long catalogTtlMillis, long searchTtlMillis, int maxSearches) {
+        this.delegate = delegate;
+        this.catalog = new ResultCache<List<Object>, Object>(catalogTtlMillis, 16);
+        this.searches = new ResultCache<List<Object>, Object>(searchTtlMillis, maxSearches);
+    }
+
+    public ResultCache<List<Object>, Object> getCatalogCache() {
+        return catalog;
+    }
+
+    public ResultCache<List<Object>, Object> getSearchCache() {
+        return searches;
+    }
+
+    /**********
+     * CACHED *
+     **********/
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getAllRentalCompanies() {
+        return (Set<String>) catalog.get(key("getAllRentalCompanies"), new ResultCache.Loader<Object>() {
+            @Override
+            public Object load() {
+                return Collections.unmodifiableSet(new HashSet<String>(delegate.getAllRentalCompanies()));
+            }
+        });
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<CarType> getAvailableCarTypes(final Date start, final Date end) {
+        return (List<CarType>) searches.get(key("getAvailableCarTypes", start, end), new ResultCache.Loader<Object>() {
+            @Override
+            public Object load() {
+                return Collections.unmodifiableList(new ArrayList<CarType>(delegate.getAvailableCarTypes(start, end)));
+            }
+        });
+    }
+
+    @Override
+    public AvailabilityCalendar getAvailabilityCalendar(final String company, final String carType, final Date from, final Date to) {
+        return (AvailabilityCalendar) searches.get(key("getAvailabilityCalendar", company, carType, from, to), new ResultCache.Loader<Object>() {
+            @Override
+            public Object load() {
+                return delegate.getAvailabilityCalendar(company, carType, from, to);
+            }
+        });
+    }
+
+    @Override
+    public ReservationConstraints findEarliestWindow(final String company, final String carType, final Date notBefore, final int durationDays) {
+        return (ReservationConstraints) searches.get(key("findEarliestWindow", company, carType, notBefore, durationDays), new ResultCache.Loader<Object>() {
+            @Override
+            public Object load() {
+                return delegate.findEarliestWindow(company, carType, notBefore, durationDays);
+            }
+        });
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Quote> findCheapestWindows(final Date earliestStart, final Date latestEnd, final int durationDays, final int maxResults) {
+        return (List<Quote>) searches.get(key("findCheapestWindows", earliestStart, latestEnd, durationDays, maxResults), new ResultCache.Loader<Object>() {
+            @Override
+            public Object load() {
+                return Collections.unmodifiableList(new ArrayList<Quote>(
+                        delegate.findCheapestWindows(earliestStart, latestEnd, durationDays, maxResults)));
+            }
+        });
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Quote> findAvailableCarTypes(final ReservationConstraints constraints) {
+        return (List<Quote>) searches.get(key("findAvailableCarTypes", constraints), new ResultCache.Loader<Object>() {
+            @Override
+            public Object load() {
+                return Collections.unmodifiableList(new ArrayList<Quote>(delegate.findAvailableCarTypes(constraints)));
+            }
+        });
+    }
+
+    @Override
+    public String getCheapestCarType(final Date start, final Date end) {
+        return (String) searches.get(key("getCheapestCarType", start, end), new ResultCache.Loader<Object>() {
+            @Override
+            public Object load() {
+                return delegate.getCheapestCarType(start, end);
+            }
+        });
+    }
+
+    private static List<Object> key(Object... parts) {
+        List<Object> out = new ArrayList<Object>(parts.length);
+        for (Object part : parts) {
+            out.add(keyPart(part));
+        }
+        return out;
+    }
+
+    private static Object keyPart(Object part) {
+        if (part instanceof Date) {
+            return ((Date) part).getTime();
+        }
+        if (part instanceof ReservationConstraints) {
+            ReservationConstraints c = (ReservationConstraints) part;
+            return Arrays.asList(keyPart(c.getStartDate()), keyPart(c.getEndDate()), c.getCarType(),
+                    c.getMinSeats(), c.getMinTrunkSpace(), c.getSmokingAllowed(), c.getMaxPricePerDay());
+        }
+        return part;
+    }
+
+    /****************
+     * PASS THROUGH *
+     ****************/
+
+    @Override
+    public void setRenterName(String name) {
+        delegate.setRenterName(name);
+    }
+
+    @Override
+    public Quote createQuote(String company, ReservationConstraints constraints) throws ReservationException {
+        return delegate.createQuote(company, constraints);
+    }
+
+    @Override
+    public List<QuoteResult> createQuotes(List<QuoteRequest> requests) {
+        return delegate.createQuotes(requests);
+    }
+
+    @Override
+    public long joinWaitlist(String company, ReservationConstraints constraints) {
+        return delegate.joinWaitlist(company, constraints);
+    }
+
+    @Override
+    public Quote awaitWaitlist(long ticket, long waitMillis) {
+        return delegate.awaitWaitlist(ticket, waitMillis);
+    }
+
+    @Override
+    public void leaveWaitlist(long ticket) {
+        delegate.leaveWaitlist(ticket);
+    }
+
+    @Override
+    public List<Quote> getCurrentQuotes() {
+        return delegate.getCurrentQuotes();
+    }
+
+    @Override
+    public List<Reservation> confirmQuotes() throws ReservationException {
+        try {
+            return delegate.confirmQuotes();
+        } finally {
+            searches.invalidateAll();
+        }
+    }
+
+    @Override
+    public Reservation modifyReservation(int id, Date newStart, Date newEnd) throws ReservationException {
+        try {
+            return delegate.modifyReservation(id, newStart, newEnd);
+        } finally {
+            searches.invalidateAll();
+        }
+    }
+
+    /*************
+     * TO STRING *
+     *************/
+
+    @Override
+    public String toString() {
+        return String.format("Caching reservation session [catalog: %s; searches: %s]", catalog, searches);
+    }
+}
@@ -0,0 +1,220 @@
+package session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import rental.AdmissionStatistics;
+import rental.CarType;
+import rental.ChangeBatch;
+import rental.PricingStrategy;
+import rental.ReservationException;
+import rental.UtilisationReport;
+
+/**
+ * Client-side decorator that caches the catalog reads of a manager session
+ * (companies, car types and car ids) for a fixed time. Any change made
+ * through this session drops the cached catalog. Reservation statistics
+ * change with every booking and are never cached. Cached collections are
+ * handed out unmodifiable, since every hit shares them.
+ */
+public class CachingManagerSession implements ManagerSessionRemote {
+
+    private final ManagerSessionRemote delegate;
+    private final ResultCache<List<Object>, Object> catalog;
+
+    /***************
+     * CONSTRUCTOR *
+     ***************/
+
+    public CachingManagerSession(ManagerSessionRemote delegate) {
+        this(delegate, CachingCarRentalSession.DEFAULT_CATALOG_TTL_MILLIS, CachingCarRentalSession.DEFAULT_MAX_SEARCHES);
+    }
+
+    public CachingManagerSession(ManagerSessionRemote delegate, long catalogTtlMillis, int maxEntries) {
+        this.delegate = delegate;
+        this.catalog = new ResultCache<List<Object>, Object>(catalogTtlMillis, maxEntries);
+    }
+
+    public ResultCache<List<Object>, Object> getCatalogCache() {
+        return catalog;
+    }
+
+    /**********
+     * CACHED *
+     **********/
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<CarType> getCarTypes(final String company) {
+        return (Set<CarType>) catalog.get(key("getCarTypes", company), new ResultCache.Loader<Object>() {
+            @Override
+            public Object load() {
+                return Collections.unmodifiableSet(new HashSet<CarType>(delegate.getCarTypes(company)));
+            }
+        });
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<Integer> getCarIds(final String company, final String type) {
+        return (Set<Integer>) catalog.get(key("getCarIds", company, type), new ResultCache.Loader<Object>() {
+            @Override
+            public Object load() {
+                return Collections.unmodifiableSet(new HashSet<Integer>(delegate.getCarIds(company, type)));
+            }
+        });
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<String> getAllRentalCompanies() {
+        return (List<String>) catalog.get(key("getAllRentalCompanies"), new ResultCache.Loader<Object>() {
+            @Override
+            public Object load() {
+                return Collections.unmodifiableList(new ArrayList<String>(delegate.getAllRentalCompanies()));
+            }
+        });
+    }
+
+    private static List<Object> key(Object... parts) {
+        return Arrays.asList(parts);
+    }
+
+    /****************
+     * PASS THROUGH *
+     ****************/
+
+    @Override
+    public int getNumberOfReservations(String company, String type, int carId) {
+        return delegate.getNumberOfReservations(company, type, carId);
+    }
+
+    @Override
+    public int getNumberOfReservations(String company, String type) {
+        return delegate.getNumberOfReservations(company, type);
+    }
+
+    @Override
+    public int getNumberOfReservationsBy(String renter) {
+        return delegate.getNumberOfReservationsBy(renter);
+    }
+
+    @Override
+    public UtilisationReport getUtilisationReport(String company, Date start, Date end) {
+        return delegate.getUtilisationReport(company, start, end);
+    }
+
+    @Override
+    public String getMostPopularCarRentalCompany() {
+        return delegate.getMostPopularCarRentalCompany();
+    }
+
+    @Override
+    public int cancelReservations(List<Integer> ids) throws ReservationException {
+        return delegate.cancelReservations(ids);
+    }
+
+    @Override
+    public ChangeBatch getReservationChanges(long cursor, int max) {
+        return delegate.getReservationChanges(cursor, max);
+    }
+
+    @Override
+    public ChangeBatch getReservationChanges(long cursor, int max, long waitMillis) {
+        return delegate.getReservationChanges(cursor, max, waitMillis);
+    }
+
+    @Override
+    public void addNewCompany(String name) {
+        try {
+            delegate.addNewCompany(name);
+        } finally {
+            catalog.invalidateAll();
+        }
+    }
+
+    @Override
+    public void addNewCarType(String name, int nbOfSeats, float trunkSpace, double rentalPricePerDay, boolean smokingAllowed, String companyName) {
+        try {
+            delegate.addNewCarType(name, nbOfSeats, trunkSpace, rentalPricePerDay, smokingAllowed, companyName);
+        } finally {
+            catalog.invalidateAll();
+        }
+    }
+
+    @Override
+    public void addNewCar(int id, String type, String companyName) {
+        try {
+            delegate.addNewCar(id, type, companyName);
+        } finally {
+            catalog.invalidateAll();
+        }
+    }
+
+    @Override
+    public void setPricingStrategy(String companyName, PricingStrategy strategy) {
+        delegate.setPricingStrategy(companyName, strategy);
+    }
+
+    @Override
+    public long exportSnapshot(String name) {
+        return delegate.exportSnapshot(name);
+    }
+
+    @Override
+    public long exportSnapshot(String name, long sinceCursor) {
+        return delegate.exportSnapshot(name, sinceCursor);
+    }
+
+    @Override
+    public int importSnapshot(String name) {
+        try {
+            return delegate.importSnapshot(name);
+        } finally {
+            catalog.invalidateAll();
+        }
+    }
+
+    @Override
+    public byte[] readSnapshot(String name, long offset, int maxBytes) {
+        return delegate.readSnapshot(name, offset, maxBytes);
+    }
+
+    @Override
+    public void writeSnapshot(String name, long offset, byte[] chunk) {
+        delegate.writeSnapshot(name, offset, chunk);
+    }
+
+    @Override
+    public List<AdmissionStatistics> getAdmissionStatistics() {
+        return delegate.getAdmissionStatistics();
+    }
+
+    @Override
+    public boolean isReady() {
+        return delegate.isReady();
+    }
+
+    @Override
+    public long getStartupTimeMillis() {
+        return delegate.getStartupTimeMillis();
+    }
+
+    @Override
+    public String getStartupFailure() {
+        return delegate.getStartupFailure();
+    }
+
+    /*************
+     * TO STRING *
+     *************/
+
+    @Override
+    public String toString() {
+        return String.format("Caching manager session [catalog: %s]", catalog);
+    }
+}
@@ -0,0 +1,13 @@
+package session;
+
+import javax.ejb.Local;
+
+/**
+ * In-process view of a reservation session, for callers deployed in the same
+ * application. Arguments and results are passed by reference instead of being
+ * copied, so callers must treat both as read-only once handed over.
+ */
+@Local
+public interface CarRentalSessionLocal extends CarRentalSessionRemote {
+    
+}
@@ -4,8 +4,11 @@ import java.util.Date;
 import java.util.List;
 import java.util.Set;
 import javax.ejb.Remote;
+import rental.AvailabilityCalendar;
 import rental.CarType;
 import rental.Quote;
+import rental.QuoteRequest;
+import rental.QuoteResult;
 import rental.Reservation;
 import rental.ReservationConstraints;
 import rental.ReservationException;
@@ -19,11 +22,29 @@ public interface CarRentalSessionRemote {
     
     public List<CarType> getAvailableCarTypes(Date start, Date end);
     
+    public AvailabilityCalendar getAvailabilityCalendar(String company, String carType, Date from, Date to);
+    
+    public ReservationConstraints findEarliestWindow(String company, String carType, Date notBefore, int durationDays);
+    
+    public List<Quote> findCheapestWindows(Date earliestStart, Date latestEnd, int durationDays, int maxResults);
+    
+    public List<Quote> findAvailableCarTypes(ReservationConstraints constraints);
+    
     public Quote createQuote(String company, ReservationConstraints constraints) throws ReservationException;
     
+    public List<QuoteResult> createQuotes(List<QuoteRequest> requests);
+    
+    public long joinWaitlist(String company, ReservationConstraints constraints);
+    
+    public Quote awaitWaitlist(long ticket, long waitMillis);
+    
+    public void leaveWaitlist(long ticket);
+    
     public List<Quote> getCurrentQuotes();
     
     public List<Reservation> confirmQuotes() throws ReservationException;
+    
+    public Reservation modifyReservation(int id, Date newStart, Date newEnd) throws ReservationException;
 
     public String getCheapestCarType(Date start, Date end);
     
@@ -1,9 +1,15 @@
 package session;
 
+import java.util.Date;
 import java.util.List;
 import java.util.Set;
 import javax.ejb.Remote;
+import rental.AdmissionStatistics;
 import rental.CarType;
+import rental.ChangeBatch;
+import rental.PricingStrategy;
+import rental.ReservationException;
+import rental.UtilisationReport;
 import rental.Reservation;
 
 @Remote
@@ -19,6 +25,14 @@ public interface ManagerSessionRemote {
       
     public int getNumberOfReservationsBy(String renter);
     
+    public UtilisationReport getUtilisationReport(String company, Date start, Date end);
+    
+    public int cancelReservations(List<Integer> ids) throws ReservationException;
+    
+    public ChangeBatch getReservationChanges(long cursor, int max);
+    
+    public ChangeBatch getReservationChanges(long cursor, int max, long waitMillis);
+    
     public void addNewCompany(String name);
     
     public List<String> getAllRentalCompanies();
@@ -28,4 +42,44 @@ public interface ManagerSessionRemote {
     public void addNewCarType(String name, int nbOfSeats, float trunkSpace, double rentalPricePerDay, boolean smokingAllowed, String companyName);
     
     public void addNewCar(int id, String type, String companyName);
+    
+    public void setPricingStrategy(String companyName, PricingStrategy strategy);
+    
+    /**
+     * Writes a full snapshot of the given name to the snapshot directory of
+     * the server.
+     *
+     * @return the change feed cursor it runs up to
+     */
+    public long exportSnapshot(String name);
+    
+    public long exportSnapshot(String name, long sinceCursor);
+    
+    public int importSnapshot(String name);
+    
+    /**
+     * Streams a snapshot from the snapshot directory of the server to the
+     * caller, one chunk at a time.
+     *
+     * @return at most the given number of bytes from the given offset, none
+     *         at the end of the snapshot
+     */
+    public byte[] readSnapshot(String name, long offset, int maxBytes);
+    
+    /**
+     * Streams a snapshot from the caller to the snapshot directory of the
+     * server, one chunk at a time and in order, starting at offset 0.
+     */
+    public void writeSnapshot(String name, long offset, byte[] chunk);
+    
+    public List<AdmissionStatistics> getAdmissionStatistics();
+    
+    public boolean isReady();
+    
+    public long getStartupTimeMillis();
+    
+    /**
+     * @return why this instance failed to get ready, or null if it has not
+     */
+    public String getStartupFailure();
 }
\ No newline at end of file
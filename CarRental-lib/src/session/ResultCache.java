@@ -0,0 +1,122 @@
+package session;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least-recently-used cache whose entries expire a fixed time after
+ * they were loaded. Keeps track of its hit rate. Thread-safe.
+ */
+public class ResultCache<K, V> {
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final LinkedHashMap<K, CachedValue<V>> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * Loads a value on a cache miss.
+     */
+    public interface Loader<V> {
+
+        public V load();
+    }
+
+    /***************
+     * CONSTRUCTOR *
+     ***************/
+
+    public ResultCache(long ttlMillis, final int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<K, CachedValue<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached value for the given key, or loads, caches and returns
+     * it if there is no live entry. The loader is called without holding the
+     * cache lock, so slow remote calls do not block other lookups.
+     */
+    public V get(K key, Loader<V> loader) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            CachedValue<V> entry = entries.get(key);
+            if (entry != null && entry.expiresAt > now) {
+                hits++;
+                return entry.value;
+            }
+            misses++;
+        }
+        V value = loader.load();
+        synchronized (this) {
+            entries.put(key, new CachedValue<V>(value, System.currentTimeMillis() + ttlMillis));
+        }
+        return value;
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    public synchronized void evictExpired() {
+        long now = System.currentTimeMillis();
+        for (Iterator<CachedValue<V>> it = entries.values().iterator(); it.hasNext();) {
+            if (it.next().expiresAt <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    /**************
+     * STATISTICS *
+     **************/
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /*************
+     * TO STRING *
+     *************/
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d entries, %d hits, %d misses, hit rate %.2f", 
+                entries.size(), hits, misses, getHitRate());
+    }
+
+    private static class CachedValue<V> {
+
+        private final V value;
+        private final long expiresAt;
+
+        CachedValue(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}